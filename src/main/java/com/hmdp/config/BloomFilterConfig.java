@@ -0,0 +1,40 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.List;
+import java.util.function.LongFunction;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @author 李
+ * @version 1.0
+ */
+@Configuration
+public class BloomFilterConfig {
+    //应用启动后，用tb_shop、tb_blog、tb_user的id初始化布隆过滤器
+    @Bean
+    public ApplicationRunner bloomFilterInitializer(BloomFilterManager bloomFilterManager, IShopService shopService,
+                                                    IBlogService blogService, IUserService userService) {
+        return args -> {
+            bloomFilterManager.register(CACHE_SHOP_KEY, idsAfter(shopService));
+            bloomFilterManager.register(CACHE_BLOG_KEY, idsAfter(blogService));
+            bloomFilterManager.register(CACHE_USER_KEY, idsAfter(userService));
+        };
+    }
+
+    //select id from 表 where id > ?
+    private static <T> LongFunction<List<Long>> idsAfter(IService<T> service) {
+        return minId -> service.listObjs(new QueryWrapper<T>().select("id").gt("id", minId),
+                id -> Long.valueOf(id.toString()));
+    }
+}
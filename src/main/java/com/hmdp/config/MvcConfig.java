@@ -2,6 +2,8 @@ package com.hmdp.config;
 
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import com.hmdp.interceptor.SeckillRateLimitInterceptor;
+import com.hmdp.utils.SeckillRateLimiter;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -18,6 +20,9 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器
@@ -30,10 +35,17 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/blog/hot",
                         "/user/login",
-                        "/user/code"
+                        "/user/code",
+                        //actuator只在独立的管理端口上提供（management.server），管理端口的子容器同样会应用这些拦截器
+                        "/actuator/**"
                 ).order(1);
         //token刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 .addPathPatterns("/**").order(0);
+        //秒杀限流拦截器：本地预过滤在访问redis之前，redis限流在登录校验之后（需要用户id）
+        registry.addInterceptor(new SeckillRateLimitInterceptor(seckillRateLimiter, true))
+                .addPathPatterns("/voucher-order/seckill/**").order(-1);
+        registry.addInterceptor(new SeckillRateLimitInterceptor(seckillRateLimiter, false))
+                .addPathPatterns("/voucher-order/seckill/**").order(2);
     }
 }
@@ -1,23 +1,50 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import javax.annotation.Resource;
+
 /**
+ * 与spring.redis使用相同的部署模式和地址
+ *
  * @author 李
  * @version 1.0
  */
 @Configuration
 public class RedissonConfig {
+    @Resource
+    private RedisProperties redisProperties;
+
     @Bean
     public RedissonClient redissonClient() {
         //配置
         Config config = new Config();
-        //redis单节点模式，设置redis服务器的地址，端口，密码
-        config.useSingleServer().setAddress("redis://127.0.0.1:6379").setPassword("123456");
+        String password = StrUtil.emptyToNull(redisProperties.getPassword());
+        RedisProperties.Cluster cluster = redisProperties.getCluster();
+        RedisProperties.Sentinel sentinel = redisProperties.getSentinel();
+        if (cluster != null && cluster.getNodes() != null && !cluster.getNodes().isEmpty()) {
+            //redis集群模式，设置所有节点的地址
+            config.useClusterServers()
+                    .addNodeAddress(cluster.getNodes().stream().map(n -> "redis://" + n).toArray(String[]::new))
+                    .setPassword(password);
+        } else if (sentinel != null && sentinel.getMaster() != null) {
+            //redis哨兵模式，设置主节点名称和哨兵的地址
+            config.useSentinelServers()
+                    .setMasterName(sentinel.getMaster())
+                    .addSentinelAddress(sentinel.getNodes().stream().map(n -> "redis://" + n).toArray(String[]::new))
+                    .setPassword(password);
+        } else {
+            //redis单节点模式，设置redis服务器的地址，端口，密码
+            config.useSingleServer()
+                    .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+                    .setPassword(password);
+        }
         //创建RedissonClient对象
         return Redisson.create(config);
     }
@@ -0,0 +1,60 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 秒杀接口的限流配置（hmdp.seckill.rate-limit），vouchers中可以按秒杀券覆盖其中的任意一项
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill.rate-limit")
+public class SeckillRateLimitProperties {
+    private boolean enabled = true;
+
+    //从该请求头取客户端ip（经过nginx转发时为X-Real-IP），为空时使用连接的地址
+    private String ipHeader;
+
+    //默认限制
+    private Limits defaults = new Limits();
+
+    //秒杀券id -> 该秒杀券的限制，未配置的项使用默认值
+    private Map<Long, Limits> vouchers = new HashMap<>();
+
+    /**
+     * 一个秒杀券的各级限制
+     */
+    @Data
+    public static class Limits {
+        //每个节点的本地预过滤，不访问redis
+        private Bucket local;
+        //所有节点共享的全局限制
+        private Bucket voucher;
+        //每个用户
+        private Bucket user;
+        //每个ip
+        private Bucket ip;
+    }
+
+    /**
+     * 令牌桶，rate为0表示不限制
+     */
+    @Data
+    public static class Bucket {
+        //每秒补充的令牌数
+        private double rate;
+        //桶的容量（允许的突发请求数），为0时等于rate
+        private int burst;
+
+        public int capacity() {
+            return burst > 0 ? burst : (int) Math.max(Math.ceil(rate), 1);
+        }
+    }
+}
@@ -4,10 +4,13 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHERS_KEY;
+
 /**
  *  前端控制器
  *
@@ -21,6 +24,9 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -29,6 +35,8 @@ public class VoucherController {
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
         voucherService.save(voucher);
+        //删除店铺的优惠券列表缓存
+        cacheClient.evict(CACHE_SHOP_VOUCHERS_KEY + voucher.getShopId());
         return Result.ok(voucher.getId());
     }
 
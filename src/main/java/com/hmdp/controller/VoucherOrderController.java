@@ -4,10 +4,8 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -27,4 +25,29 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 排队领取号码（开启排队时，号码被放行之后才能秒杀）
+     */
+    @PostMapping("queue/{id}")
+    public Result joinWaitingRoom(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.joinWaitingRoom(voucherId);
+    }
+
+    /**
+     * 查询排队位置和预计等待时间
+     */
+    @GetMapping("queue/{id}")
+    public Result queryWaitingRoom(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.queryWaitingRoom(voucherId);
+    }
+
+    /**
+     * 查询秒杀订单的处理状态，wait为true时订单处理完毕（或者超时）才返回
+     */
+    @GetMapping("status/{orderId}")
+    public DeferredResult<Result> orderStatus(@PathVariable("orderId") Long orderId,
+                                              @RequestParam(value = "wait", defaultValue = "true") Boolean wait) {
+        return voucherOrderService.queryOrderStatus(orderId, wait);
+    }
 }
@@ -0,0 +1,19 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀订单的处理状态
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Data
+public class OrderStatusDTO {
+    //订单id
+    private Long orderId;
+    //PENDING：处理中；SUCCESS：下单成功；FAILED：下单失败
+    private String status;
+    //失败原因
+    private String reason;
+}
@@ -0,0 +1,25 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀排队的号码和进度
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Data
+public class QueueTicketDTO {
+    //优惠券id
+    private Long voucherId;
+    //排队号码，尚未排队时为空
+    private Long ticket;
+    //前面还有多少人，已放行时为0
+    private Long position;
+    //预计还需等待的毫秒数
+    private Long etaMillis;
+    //是否已经可以下单
+    private Boolean admitted;
+    //是否已售罄（售罄后不再排队）
+    private Boolean soldOut;
+}
@@ -0,0 +1,71 @@
+package com.hmdp.interceptor;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * @author 李
+ * @version 1.0
+ * 秒杀接口限流拦截器，超出限制时返回429。
+ * local为true时在token刷新拦截器之前只做本地预过滤，否则在登录拦截器之后按秒杀券、用户、ip在redis中限流
+ */
+public class SeckillRateLimitInterceptor implements HandlerInterceptor {
+    private final SeckillRateLimiter seckillRateLimiter;
+    private final boolean local;
+
+    public SeckillRateLimitInterceptor(SeckillRateLimiter seckillRateLimiter, boolean local) {
+        this.seckillRateLimiter = seckillRateLimiter;
+        this.local = local;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1.获取路径中的秒杀券id
+        Long voucherId = voucherIdOf(request);
+        if (!seckillRateLimiter.isEnabled() || voucherId == null) {
+            return true;
+        }
+        //2.限流
+        boolean allowed;
+        if (local) {
+            allowed = seckillRateLimiter.tryAcquireLocal(voucherId);
+        } else {
+            UserDTO user = UserHolder.getUser();
+            allowed = seckillRateLimiter.tryAcquire(voucherId, user == null ? null : user.getId(), clientIp(request));
+        }
+        if (allowed) {
+            return true;
+        }
+        //3.超出限制，返回429
+        response.setStatus(429);
+        response.setHeader("Retry-After", "1");
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("当前抢购人数过多，请稍后再试")));
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Long voucherIdOf(HttpServletRequest request) {
+        Map<String, String> variables = (Map<String, String>)
+                request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String id = variables == null ? null : variables.get("id");
+        return StrUtil.isNumeric(id) ? Long.valueOf(id) : null;
+    }
+
+    private String clientIp(HttpServletRequest request) {
+        String header = seckillRateLimiter.getIpHeader();
+        String ip = StrUtil.isBlank(header) ? null : request.getHeader(header);
+        //X-Forwarded-For可能有多个地址，第一个是客户端
+        return StrUtil.isBlank(ip) ? request.getRemoteAddr() : StrUtil.subBefore(ip, ",", false).trim();
+    }
+}
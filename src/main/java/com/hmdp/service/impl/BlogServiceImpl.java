@@ -1,7 +1,6 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
@@ -9,11 +8,12 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -21,14 +21,12 @@ import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * 服务实现类
@@ -48,6 +46,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
     //在分页中显示blog信息，包括点赞数
     @Override
     public Result queryHotBlog(Integer current) {
@@ -57,13 +61,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            //查询发布blog的user
-            this.queryBlogUser(blog);
-            //查询当前用户有没有点赞过该blog
-            this.isBlogLiked(blog);
-        });
+        // 批量查询发布blog的user
+        this.queryBlogUsers(records);
+        // 查询当前用户有没有点赞过该blog
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -113,6 +114,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //3.2保存用户到redis的zset集合 zadd key value score
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.evict(CACHE_BLOG_KEY + id);
             }
         } else {//4.如果已经点赞，则取消点赞
             //4.1数据库点赞数-1
@@ -120,6 +122,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //4.2将用户从redis的zset集合中移除
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.evict(CACHE_BLOG_KEY + id);
             }
         }
         return Result.ok();
@@ -136,13 +139,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //2.解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        //3.根据用户id查询用户 WHERE id IN (1033,1,2) ORDER BY FIELD(id,1033,1,2)
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //3.根据用户id批量查询用户（先查缓存），按照ids的顺序返回
+        List<UserDTO> userDTOS = userService.queryUserDTOByIds(ids);
         //4.返回
         return Result.ok(userDTOS);
     }
@@ -158,6 +156,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败！");
         }
+        bloomFilterManager.add(CACHE_BLOG_KEY, blog.getId());
         //3.查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id=?
         List<Follow> follows = followService.query()
                 .eq("follow_user_id", user.getId()).list();
@@ -211,18 +210,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
         }
 
-        //5.根据blogId查询blog
-        //listByIds()是基于in子句来查询的，不能保证顺序，因此使用order by排序
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        //5.根据blogId批量查询blog（先查缓存，未命中的用一次IN查询），按照ids的顺序返回
+        //缓存中的对象是共享的，复制一份再填充用户和点赞信息
+        List<Blog> blogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class,
+                        missIds -> listByIds(missIds).stream()
+                                .collect(Collectors.toMap(Blog::getId, Function.identity())),
+                        CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .stream()
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
 
-        for (Blog blog : blogs) {
-            //5.1查询blog从属的用户信息
-            queryBlogUser(blog);
-            //5.2查询blog是否被当前登录用户点赞
-            isBlogLiked(blog);
-        }
+        //5.1批量查询blog从属的用户信息
+        queryBlogUsers(blogs);
+        //5.2查询blog是否被当前登录用户点赞
+        blogs.forEach(this::isBlogLiked);
 
         //6.封装并返回
         ScrollResult r = new ScrollResult();
@@ -234,9 +235,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     public void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        queryBlogUsers(Collections.singletonList(blog));
+    }
+
+    //批量查询多篇blog的作者信息，所有作者只查询一次缓存/数据库
+    private void queryBlogUsers(List<Blog> blogs) {
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = userService.queryUserDTOByIds(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 }
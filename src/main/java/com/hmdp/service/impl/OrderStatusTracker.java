@@ -0,0 +1,217 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderStatusDTO;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单的处理状态
+ * <p>
+ * 秒杀接口返回订单id时订单还没有写入数据库，消费者处理完毕后把最终状态写入order:status:{orderId}哈希（HSETNX，
+ * 重复投递的消息不会覆盖第一次的结果），并在order:status频道中发布这批订单id。
+ * 查询状态的请求在订单未完成时挂起为DeferredResult，不占用tomcat线程，收到通知或者超时后返回
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker {
+    public static final String PENDING = "PENDING";
+
+    public static final String SUCCESS = "SUCCESS";
+
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //订单状态保存的分钟数
+    @Value("${hmdp.seckill.status.ttl-minutes:30}")
+    private long ttlMinutes;
+
+    //长轮询最多挂起的毫秒数
+    @Value("${hmdp.seckill.status.poll-timeout-ms:10000}")
+    private long pollTimeoutMs;
+
+    //每个节点最多同时挂起的请求数，超过后直接返回当前状态
+    @Value("${hmdp.seckill.status.max-waiters:10000}")
+    private int maxWaiters;
+
+    //订单id -> 等待该订单结果的请求
+    private final ConcurrentHashMap<Long, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("seckill.order.status.waiters", waiting, AtomicInteger::get).register(meterRegistry);
+        //消息格式：orderId1,orderId2,...
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            for (String id : new String(message.getBody(), StandardCharsets.UTF_8).split(",")) {
+                Long orderId = Long.valueOf(id);
+                if (waiters.containsKey(orderId)) {
+                    wakeUp(orderId);
+                }
+            }
+        }, new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 订单写入数据库后调用
+     */
+    public void succeeded(Collection<VoucherOrder> orders) {
+        complete(orders, SUCCESS, null);
+    }
+
+    /**
+     * 订单最终失败（库存不足、重复下单、进入死信队列）后调用
+     */
+    public void failed(Collection<VoucherOrder> orders, String reason) {
+        complete(orders, FAILED, reason);
+    }
+
+    private void complete(Collection<VoucherOrder> orders, String status, String reason) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        try {
+            long ttl = TimeUnit.MINUTES.toSeconds(ttlMinutes);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                StringBuilder ids = new StringBuilder();
+                for (VoucherOrder order : orders) {
+                    String key = ORDER_STATUS_KEY + order.getId();
+                    conn.hSetNX(key, "status", status);
+                    conn.hSetNX(key, "userId", order.getUserId().toString());
+                    conn.hSetNX(key, "voucherId", order.getVoucherId().toString());
+                    if (reason != null) {
+                        conn.hSetNX(key, "reason", reason);
+                    }
+                    conn.expire(key, ttl);
+                    ids.append(ids.length() == 0 ? "" : ",").append(order.getId());
+                }
+                //通知所有节点唤醒等待这些订单的请求
+                conn.publish(ORDER_STATUS_CHANNEL, ids.toString());
+                return null;
+            });
+        } catch (Exception e) {
+            //状态只用于查询，写入失败时客户端等待超时后重新查询
+            log.error("写入订单状态失败", e);
+        }
+    }
+
+    /**
+     * 查询订单状态，订单还在处理中并且wait为true时挂起请求，直到处理完毕或者超时
+     */
+    public DeferredResult<Result> query(Long orderId, Long userId, boolean wait) {
+        DeferredResult<Result> result = new DeferredResult<>(pollTimeoutMs);
+        if (!wait || waiting.get() >= maxWaiters) {
+            result.setResult(load(orderId, userId));
+            return result;
+        }
+        //先登记再查询，避免查询之后、登记之前的通知被错过
+        Waiter waiter = new Waiter(userId, result);
+        waiters.computeIfAbsent(orderId, id -> new CopyOnWriteArraySet<>()).add(waiter);
+        waiting.incrementAndGet();
+        result.onCompletion(() -> remove(orderId, waiter));
+        result.onTimeout(() -> result.setResult(pending(orderId)));
+        Result current = load(orderId, userId);
+        if (!isPending(current)) {
+            result.setResult(current);
+        }
+        return result;
+    }
+
+    private void wakeUp(Long orderId) {
+        Set<Waiter> set = waiters.get(orderId);
+        if (set == null) {
+            return;
+        }
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+        for (Waiter waiter : set) {
+            waiter.result.setResult(toResult(orderId, entries, waiter.userId));
+        }
+    }
+
+    private void remove(Long orderId, Waiter waiter) {
+        waiting.decrementAndGet();
+        waiters.computeIfPresent(orderId, (id, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private Result load(Long orderId, Long userId) {
+        return toResult(orderId, stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId), userId);
+    }
+
+    private static Result toResult(Long orderId, Map<Object, Object> entries, Long userId) {
+        if (entries.isEmpty()) {
+            //消费者还没有处理
+            return pending(orderId);
+        }
+        if (!userId.toString().equals(entries.get("userId"))) {
+            return Result.fail("订单不存在");
+        }
+        OrderStatusDTO dto = new OrderStatusDTO();
+        dto.setOrderId(orderId);
+        dto.setStatus((String) entries.get("status"));
+        dto.setReason(StrUtil.emptyToNull((String) entries.get("reason")));
+        return Result.ok(dto);
+    }
+
+    private static Result pending(Long orderId) {
+        OrderStatusDTO dto = new OrderStatusDTO();
+        dto.setOrderId(orderId);
+        dto.setStatus(PENDING);
+        return Result.ok(dto);
+    }
+
+    private static boolean isPending(Result result) {
+        return result.getData() instanceof OrderStatusDTO
+                && PENDING.equals(((OrderStatusDTO) result.getData()).getStatus());
+    }
+
+    //一个挂起的查询请求
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> result;
+
+        private Waiter(Long userId, DeferredResult<Result> result) {
+            this.userId = userId;
+            this.result = result;
+        }
+    }
+}
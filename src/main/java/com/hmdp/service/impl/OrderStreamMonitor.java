@@ -0,0 +1,226 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.utils.SeckillKeys;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+
+/**
+ * 订单队列积压监控与背压
+ * <p>
+ * 每个节点定期通过XINFO GROUPS、XPENDING计算各个订单队列stream.orders:{p}中消费者组g1的积压：最早一条未确认（或未读取）消息已经等待的毫秒数，
+ * 以及队列长度（取各个队列中最大的等待时间、长度之和），并上报为指标；随后用XTRIM MINID ~裁剪已经确认的消息（最早的待确认消息及之后的消息都会保留），
+ * 使队列只保存积压的订单。积压超过阈值时秒杀请求按mode快速失败（reject），或者在有限的等待名额内等待积压消除（queue），
+ * 从而限制redis内存和数据库的写入压力
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class OrderStreamMonitor {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    //是否裁剪已经确认的消息，需要redis 6.2以上
+    @Value("${hmdp.seckill.stream.trim:true}")
+    private boolean trim;
+
+    @Value("${hmdp.seckill.backpressure.enabled:true}")
+    private boolean enabled;
+
+    //最早一条未处理的消息等待超过该毫秒数时开始背压，0表示不限制
+    @Value("${hmdp.seckill.backpressure.max-lag-ms:5000}")
+    private long maxLagMs;
+
+    //队列长度超过该值时开始背压，0表示不限制
+    @Value("${hmdp.seckill.backpressure.max-length:100000}")
+    private long maxLength;
+
+    //reject：直接拒绝；queue：等待积压消除，超时或等待名额已满时拒绝
+    @Value("${hmdp.seckill.backpressure.mode:reject}")
+    private String mode;
+
+    @Value("${hmdp.seckill.backpressure.queue-wait-ms:2000}")
+    private long queueWaitMs;
+
+    @Value("${hmdp.seckill.backpressure.queue-size:200}")
+    private int queueSize;
+
+    private final AtomicLong lagMillis = new AtomicLong();
+
+    private final AtomicLong length = new AtomicLong();
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private volatile boolean overloaded;
+
+    //queue模式下允许同时等待的请求数
+    private Semaphore waiters;
+
+    private Counter rejected;
+
+    @PostConstruct
+    private void init() {
+        waiters = new Semaphore(queueSize);
+        rejected = Counter.builder("seckill.backpressure.rejected").register(meterRegistry);
+        Gauge.builder("seckill.order.stream.lag", lagMillis, AtomicLong::get)
+                .baseUnit("milliseconds").register(meterRegistry);
+        Gauge.builder("seckill.order.stream.length", length, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.order.stream.pending", pending, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.backpressure.active", this, m -> m.overloaded ? 1 : 0).register(meterRegistry);
+    }
+
+    /**
+     * 秒杀请求执行脚本之前调用，积压超过阈值时按mode拒绝或者等待
+     *
+     * @return 是否可以继续下单
+     */
+    public boolean tryAdmit() {
+        if (!overloaded) {
+            return true;
+        }
+        if ("queue".equals(mode) && waiters.tryAcquire()) {
+            try {
+                long deadline = System.currentTimeMillis() + queueWaitMs;
+                synchronized (this) {
+                    long remaining;
+                    while (overloaded && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        wait(remaining);
+                    }
+                }
+                if (!overloaded) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters.release();
+            }
+        }
+        rejected.increment();
+        return false;
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream.monitor-interval-ms:1000}")
+    public void monitor() {
+        try {
+            long maxLag = 0, totalPending = 0, totalLength = 0;
+            for (String stream : seckillKeys.streams()) {
+                //{等待毫秒数, 待确认的消息数, 队列长度}
+                long[] state = inspect(stream);
+                maxLag = Math.max(maxLag, state[0]);
+                totalPending += state[1];
+                totalLength += state[2];
+            }
+            pending.set(totalPending);
+            lagMillis.set(maxLag);
+            length.set(totalLength);
+            update(maxLag, totalLength);
+        } catch (Exception e) {
+            log.error("检查订单队列积压失败", e);
+        }
+    }
+
+    private long[] inspect(String stream) {
+        //1.XINFO GROUPS stream.orders:{p}：消费者组最后读取的消息
+        //必须先于XPENDING读取：之后才读取的消息id都大于lastDelivered，不会被裁剪；之前读取但还没有确认的消息都在XPENDING的结果中
+        String lastDelivered = stringRedisTemplate.opsForStream().groups(stream).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse(null);
+        //2.XPENDING stream.orders:{p} g1：待确认的消息数以及最早的待确认消息
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, SECKILL_ORDER_GROUP);
+        if (summary == null || lastDelivered == null) {
+            //消费者组还没有创建
+            return new long[3];
+        }
+        //3.最早一条未处理的消息：有待确认的消息时是其中最早的一条，否则是第一条未读取的消息
+        String oldest = summary.getTotalPendingMessages() > 0 ? summary.minMessageId() : firstUndelivered(stream, lastDelivered);
+        long lag = oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - RecordId.of(oldest).getTimestamp());
+        //4.裁剪已经确认的消息 XTRIM stream.orders:{p} MINID ~ oldest
+        if (trim) {
+            trim(stream, oldest != null ? oldest : lastDelivered);
+        }
+        Long size = stringRedisTemplate.opsForStream().size(stream);
+        return new long[]{lag, summary.getTotalPendingMessages(), size == null ? 0 : size};
+    }
+
+    private void update(long lag, long size) {
+        boolean now = enabled && ((maxLagMs > 0 && lag > maxLagMs) || (maxLength > 0 && size > maxLength));
+        if (now == overloaded) {
+            return;
+        }
+        overloaded = now;
+        log.warn(now ? "订单队列积压（{}ms，{}条），开始背压" : "订单队列积压已消除（{}ms，{}条）", lag, size);
+        if (!now) {
+            //唤醒等待中的请求
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    //XRANGE stream.orders:{p} (lastDelivered + COUNT 1
+    private String firstUndelivered(String stream, String lastDelivered) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(stream,
+                Range.of(Range.Bound.exclusive(lastDelivered), Range.Bound.unbounded()),
+                RedisZSetCommands.Limit.limit().count(1));
+        return records == null || records.isEmpty() ? null : records.get(0).getId().getValue();
+    }
+
+    private void trim(String stream, String minId) {
+        byte[] key = stream.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> args = Arrays.asList(
+                "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8),
+                minId.getBytes(StandardCharsets.UTF_8));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (connection instanceof RedisClusterConnection) {
+                //集群模式下按key路由到所在的节点
+                return ((RedisClusterConnection) connection).execute("XTRIM", key, args);
+            }
+            List<byte[]> keyAndArgs = new ArrayList<>();
+            keyAndArgs.add(key);
+            keyAndArgs.addAll(args);
+            return connection.execute("XTRIM", keyAndArgs.toArray(new byte[0][]));
+        });
+    }
+
+    /**
+     * 当前是否处于背压状态
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+}
@@ -0,0 +1,168 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillKeys;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_COMPACT_KEY;
+
+/**
+ * 秒杀结束后压缩订单集合
+ * <p>
+ * seckill:order:{p}:id集合中每个下单用户占用几十字节，秒杀结束后只用于判断重复下单，却一直留在redis中。
+ * 秒杀结束after-hours小时后（应当大于对账的retain-hours，对账依赖这个集合），定期把集合分批转存为位图seckill:order:{p}:id:bitmap
+ * （偏移量为用户id，seckill_compact.lua，每批SSCAN batch-size个用户），全部转存并校验之后删除集合，
+ * 秒杀脚本同时检查集合和位图，所以之后仍能判断重复下单。游标保存在seckill:compact:{p}:id中，节点重启或者中断后从游标继续。
+ * 分片库存的每个分片的订单集合分别压缩（seckill:order:{p_i}:id:i，进度在seckill:compact:{p_i}:id:i中）。
+ * 用户id超出max-user-id（位图过大）或者位图不比集合小时放弃压缩，保留集合。回收的内存（MEMORY USAGE之差）记录在日志和指标中
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class SeckillOrderCompactor {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.compact.enabled:true}")
+    private boolean enabled;
+
+    //秒杀结束多少小时之后压缩
+    @Value("${hmdp.seckill.compact.after-hours:25}")
+    private long afterHours;
+
+    //只处理最近多少天内结束的秒杀券，进度也保存这么久
+    @Value("${hmdp.seckill.compact.lookback-days:7}")
+    private long lookbackDays;
+
+    @Value("${hmdp.seckill.compact.batch-size:1000}")
+    private int batchSize;
+
+    //每次执行最多转存的批数，剩余的下次继续
+    @Value("${hmdp.seckill.compact.max-batches:200}")
+    private int maxBatches;
+
+    //位图最大的偏移量，决定了位图最多占用max-user-id/8字节（redis位图的上限是2^32-1）
+    @Value("${hmdp.seckill.compact.max-user-id:100000000}")
+    private long maxUserId;
+
+    private Counter reclaimed;
+
+    private Counter compacted;
+
+    private Counter skipped;
+
+    @PostConstruct
+    private void init() {
+        reclaimed = Counter.builder("seckill.compact.reclaimed").baseUnit("bytes").register(meterRegistry);
+        compacted = Counter.builder("seckill.compact.vouchers").tag("result", "done").register(meterRegistry);
+        skipped = Counter.builder("seckill.compact.vouchers").tag("result", "skipped").register(meterRegistry);
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.compact.initial-delay-ms:60000}",
+            fixedDelayString = "${hmdp.seckill.compact.interval-ms:600000}")
+    public void compact() {
+        if (!enabled) {
+            return;
+        }
+        //同一时间只需要一个节点执行
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_COMPACT_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            doCompact();
+        } catch (Exception e) {
+            log.error("压缩秒杀订单集合失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doCompact() {
+        //1.查询已经结束足够久的秒杀券
+        LocalDateTime deadline = LocalDateTime.now().minusHours(afterHours);
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("end_time", deadline)
+                .ge("end_time", deadline.minusDays(lookbackDays))
+                .list();
+        int budget = maxBatches;
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            //分片库存的每个分片都有自己的订单集合
+            String stockShards = stringRedisTemplate.opsForValue().get(seckillKeys.stockShards(voucherId));
+            int shards = stockShards == null ? 1 : Integer.parseInt(stockShards);
+            for (int shard = 0; shard < shards; shard++) {
+                if (budget <= 0) {
+                    //本次的批数用完，剩余的从保存的游标继续
+                    return;
+                }
+                budget = compact(voucherId, shard, budget);
+            }
+        }
+    }
+
+    //压缩一个订单集合，返回剩余的批数
+    private int compact(Long voucherId, int shard, int budget) {
+        String compactKey = seckillKeys.compact(voucherId, shard);
+        //2.已经完成或者放弃的跳过
+        Object status = stringRedisTemplate.opsForHash().get(compactKey, "status");
+        if (status != null) {
+            return budget;
+        }
+        //3.分批转存，直到完成、放弃或者本次的批数用完
+        long result = -1;
+        while (result == -1 && budget-- > 0) {
+            Long r = redisScripts.execute(RedisScripts.SECKILL_COMPACT,
+                    Arrays.asList(seckillKeys.order(voucherId, shard), seckillKeys.orderBitmap(voucherId, shard), compactKey,
+                            seckillKeys.orderIds(voucherId, shard)),
+                    String.valueOf(batchSize),
+                    String.valueOf(maxUserId),
+                    String.valueOf(TimeUnit.DAYS.toMillis(lookbackDays + 1)));
+            result = r == null ? -1 : r;
+        }
+        if (result == -2) {
+            skipped.increment();
+            log.warn("秒杀券{}（分片{}）的订单集合不适合压缩为位图: {}", voucherId, shard,
+                    stringRedisTemplate.opsForHash().get(compactKey, "reason"));
+        } else if (result >= 0) {
+            compacted.increment();
+            reclaimed.increment(result);
+            log.info("秒杀券{}（分片{}）的订单集合已压缩为位图，回收内存{}字节", voucherId, shard, result);
+        }
+        return Math.max(budget, 0);
+    }
+}
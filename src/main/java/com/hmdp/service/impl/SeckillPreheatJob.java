@@ -0,0 +1,280 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券预热
+ * <p>
+ * 定期扫描tb_seckill_voucher中即将开始（lookahead-minutes之内）和正在进行的秒杀券，
+ * 用pipeline把库存、时间窗口和优惠券信息写入redis（seckill_preheat.lua，redis中已有库存时不覆盖，可以重复执行），
+ * 并重新加载这些优惠券所属店铺的优惠券列表缓存。redis被清空或者新增节点之后，秒杀券不需要人工干预即可恢复售卖
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class SeckillPreheatJob {
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.preheat.enabled:true}")
+    private boolean enabled;
+
+    //预热多少分钟之内开始的秒杀券
+    @Value("${hmdp.seckill.preheat.lookahead-minutes:30}")
+    private long lookaheadMinutes;
+
+    private Timer duration;
+
+    private Counter stockLoaded;
+
+    private Counter vouchersWarmed;
+
+    //只丢失了部分库存分片、没有重新写入的次数（需要告警）
+    private Counter partialShards;
+
+    @PostConstruct
+    private void init() {
+        duration = Timer.builder("seckill.preheat.duration").register(meterRegistry);
+        stockLoaded = Counter.builder("seckill.preheat.stock.loaded").register(meterRegistry);
+        vouchersWarmed = Counter.builder("seckill.preheat.vouchers").register(meterRegistry);
+        partialShards = Counter.builder("seckill.preheat.shards.partial").register(meterRegistry);
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.preheat.initial-delay-ms:10000}",
+            fixedDelayString = "${hmdp.seckill.preheat.interval-ms:60000}")
+    public void preheat() {
+        if (!enabled) {
+            return;
+        }
+        //同一时间只需要一个节点执行
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_PREHEAT_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            duration.record(this::doPreheat);
+        } catch (Exception e) {
+            log.error("秒杀券预热失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doPreheat() {
+        //1.查询即将开始和正在进行的秒杀券
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                .le("begin_time", now.plusMinutes(lookaheadMinutes))
+                .ge("end_time", now)
+                .list();
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        Map<Long, Voucher> vouchers = voucherService
+                .listByIds(seckillVouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList()))
+                .stream().collect(Collectors.toMap(Voucher::getId, Function.identity()));
+        //2.分片库存先用SET NX写入各个分片（分片位于不同的槽，不能在脚本中写入；已经存在的分片说明正在售卖，不会覆盖）
+        Map<Long, Integer> stockShards = stockShardsOf(seckillVouchers);
+        Set<Long> shardsLoaded = preheatShards(seckillVouchers, stockShards);
+        //3.用pipeline写入库存、时间窗口和优惠券信息，脚本缓存丢失时重新加载脚本再执行一次（脚本可以重复执行）
+        List<Object> results;
+        try {
+            results = preheat(seckillVouchers, vouchers, stockShards, shardsLoaded);
+        } catch (RuntimeException e) {
+            if (!RedisScripts.isNoScript(e)) {
+                throw e;
+            }
+            redisScripts.loadAll();
+            results = preheat(seckillVouchers, vouchers, stockShards, shardsLoaded);
+        }
+        int loaded = 0;
+        for (int i = 0; i < results.size(); i++) {
+            if (Long.valueOf(1L).equals(results.get(i))) {
+                //重新写入了库存，清除各节点的售罄标记
+                loaded++;
+                seckillSoldOutFlags.clear(seckillVouchers.get(i).getVoucherId());
+            }
+        }
+        stockLoaded.increment(loaded);
+        vouchersWarmed.increment(seckillVouchers.size());
+        //4.重新加载所属店铺的优惠券列表缓存
+        Set<Long> shopIds = vouchers.values().stream().map(Voucher::getShopId)
+                .filter(Objects::nonNull).collect(Collectors.toSet());
+        for (Long shopId : shopIds) {
+            List<Voucher> list = voucherMapper.queryVoucherOfShop(shopId);
+            cacheClient.set(CACHE_SHOP_VOUCHERS_KEY + shopId, list.toArray(new Voucher[0]),
+                    CACHE_SHOP_VOUCHERS_TTL, TimeUnit.MINUTES);
+        }
+        log.info("预热秒杀券{}个，其中重新写入库存{}个，店铺{}个", seckillVouchers.size(), loaded, shopIds.size());
+    }
+
+    //秒杀券的库存分片数量：redis中已有不分片的库存时为1，已有分片数量时沿用，
+    //都没有时（新的秒杀券，或者redis被清空）使用hmdp.seckill.stock.shards，修改配置不影响正在售卖的秒杀券
+    private Map<Long, Integer> stockShardsOf(List<SeckillVoucher> seckillVouchers) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher seckillVoucher : seckillVouchers) {
+                conn.exists(seckillKeys.stock(seckillVoucher.getVoucherId()));
+                conn.get(seckillKeys.stockShards(seckillVoucher.getVoucherId()));
+            }
+            return null;
+        });
+        Map<Long, Integer> stockShards = new HashMap<>(seckillVouchers.size());
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            Object shards = results.get(2 * i + 1);
+            stockShards.put(seckillVouchers.get(i).getVoucherId(), Boolean.TRUE.equals(results.get(2 * i)) ? 1
+                    : shards != null ? Integer.parseInt((String) shards) : seckillKeys.getStockShards());
+        }
+        return stockShards;
+    }
+
+    //SET seckill:stock:{p_i}:id:i stock NX，返回写入了任一分片的秒杀券。
+    //只在所有分片都不存在时写入：只丢失了部分分片时，无法知道丢失的分片还剩多少库存（数据库库存不包含还在队列中的订单），
+    //按数据库库存重新拆分会超卖，因此不写入并告警，由人工或者对账修复
+    private Set<Long> preheatShards(List<SeckillVoucher> seckillVouchers, Map<Long, Integer> stockShards) {
+        List<SeckillVoucher> sharded = seckillVouchers.stream()
+                .filter(v -> stockShards.get(v.getVoucherId()) > 1).collect(Collectors.toList());
+        if (sharded.isEmpty()) {
+            return Collections.emptySet();
+        }
+        List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher seckillVoucher : sharded) {
+                for (int i = 0; i < stockShards.get(seckillVoucher.getVoucherId()); i++) {
+                    conn.exists(seckillKeys.stockShard(seckillVoucher.getVoucherId(), i));
+                }
+            }
+            return null;
+        });
+        List<SeckillVoucher> missing = new ArrayList<>();
+        int index = 0;
+        for (SeckillVoucher seckillVoucher : sharded) {
+            int shards = stockShards.get(seckillVoucher.getVoucherId());
+            long present = exists.subList(index, index + shards).stream().filter(Boolean.TRUE::equals).count();
+            index += shards;
+            if (present == 0) {
+                missing.add(seckillVoucher);
+            } else if (present < shards) {
+                partialShards.increment();
+                log.error("秒杀券{}的库存分片只剩{}/{}个，为避免超卖不重新写入丢失的分片，请人工核对库存",
+                        seckillVoucher.getVoucherId(), present, shards);
+            }
+        }
+        if (missing.isEmpty()) {
+            return Collections.emptySet();
+        }
+        List<Long> voucherIds = new ArrayList<>();
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher seckillVoucher : missing) {
+                Long voucherId = seckillVoucher.getVoucherId();
+                int shards = stockShards.get(voucherId);
+                int stock = seckillVoucher.getStock();
+                for (int i = 0; i < shards; i++) {
+                    int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                    conn.setNX(seckillKeys.stockShard(voucherId, i), String.valueOf(shardStock));
+                    voucherIds.add(voucherId);
+                }
+            }
+            return null;
+        });
+        Set<Long> loaded = new HashSet<>();
+        for (int i = 0; i < results.size(); i++) {
+            if (Boolean.TRUE.equals(results.get(i))) {
+                loaded.add(voucherIds.get(i));
+            }
+        }
+        return loaded;
+    }
+
+    //EVALSHA seckill_preheat.lua，返回每个秒杀券是否重新写入了库存
+    private List<Object> preheat(List<SeckillVoucher> seckillVouchers, Map<Long, Voucher> vouchers,
+                                 Map<Long, Integer> stockShards, Set<Long> shardsLoaded) {
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher seckillVoucher : seckillVouchers) {
+                Long voucherId = seckillVoucher.getVoucherId();
+                Voucher voucher = vouchers.getOrDefault(voucherId, new Voucher());
+                //KEYS：库存、分片数量、售罄标记、时间窗口；优惠券没有的字段写入空字符串，不写入"null"
+                List<String> keys = Arrays.asList(seckillKeys.stock(voucherId),
+                        seckillKeys.stockShards(voucherId), seckillKeys.soldOut(voucherId), seckillKeys.voucher(voucherId));
+                redisScripts.evalSha(conn, RedisScripts.SECKILL_PREHEAT, keys,
+                        voucherId.toString(),
+                        String.valueOf(seckillVoucher.getStock()),
+                        String.valueOf(stockShards.get(voucherId)),
+                        String.valueOf(toMillis(seckillVoucher.getBeginTime())),
+                        String.valueOf(toMillis(seckillVoucher.getEndTime())),
+                        Objects.toString(voucher.getShopId(), ""),
+                        Objects.toString(voucher.getTitle(), ""),
+                        Objects.toString(voucher.getPayValue(), ""),
+                        Objects.toString(voucher.getActualValue(), ""),
+                        shardsLoaded.contains(voucherId) ? "1" : "0");
+            }
+            return null;
+        });
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
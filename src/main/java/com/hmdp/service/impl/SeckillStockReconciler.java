@@ -0,0 +1,509 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存对账
+ * <p>
+ * redis中的库存和seckill:order:{p}:id是下单时同步扣减的，而tb_seckill_voucher.stock和tb_voucher_order由消费者异步写入，
+ * 消息丢失或者写入失败都会导致两边不一致。对每个进行中或者最近结束的秒杀券定期计算：
+ * <ul>
+ *     <li>订单偏差 = SCARD seckill:order:{p}:id（分片库存时为各个分片的订单集合之和） - 数据库中的订单数</li>
+ *     <li>库存偏差 = (redis库存 + 各节点租约余量) - tb_seckill_voucher.stock</li>
+ * </ul>
+ * 数据库中的订单数按create_time水位线增量统计（已统计部分保存在seckill:reconcile:{p}:id中），不需要每次全表计数。
+ * 偏差作为指标上报；消息队列没有积压、并且连续两次都存在偏差时，按hmdp.seckill.reconcile.repair的方向修复
+ * （修复订单需要全量比较redis集合与数据库订单，同一个秒杀券至少间隔repair-interval-minutes）：
+ * <ul>
+ *     <li>redis-to-db：以redis为准，把数据库中缺少的订单重新发送到订单队列（使用下单时记录在seckill:order:{p}:id:ids中的订单id），
+ *     再把数据库库存修正为redis的库存</li>
+ *     <li>db-to-redis：以数据库为准，把redis中没有对应订单的用户移出集合并归还库存，再把redis库存修正为数据库的库存</li>
+ * </ul>
+ * 数据库中已经存在的订单不会被删除，两个方向都会把它们补充到redis的集合中
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+    private static final int BATCH_SIZE = 500;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    //修复方向：none、redis-to-db、db-to-redis
+    @Value("${hmdp.seckill.reconcile.repair:none}")
+    private String repair;
+
+    //增量统计订单数的水位线落后当前时间的分钟数，晚于水位线写入的订单每次都重新统计
+    @Value("${hmdp.seckill.reconcile.settle-minutes:5}")
+    private long settleMinutes;
+
+    //秒杀结束后继续对账的小时数
+    @Value("${hmdp.seckill.reconcile.retain-hours:24}")
+    private long retainHours;
+
+    //同一个秒杀券两次修复订单的最小间隔：修复时全量比较redis集合与数据库订单，代价与订单数成正比
+    @Value("${hmdp.seckill.reconcile.repair-interval-minutes:10}")
+    private long repairIntervalMinutes;
+
+    //订单集合在秒杀结束多少小时之后被压缩为位图（见SeckillOrderCompactor），对账必须在这之前结束
+    @Value("${hmdp.seckill.compact.enabled:true}")
+    private boolean compactEnabled;
+
+    @Value("${hmdp.seckill.compact.after-hours:25}")
+    private long compactAfterHours;
+
+    //优惠券id -> 订单偏差、库存偏差
+    private final ConcurrentHashMap<Long, AtomicLong> orderDrifts = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, AtomicLong> stockDrifts = new ConcurrentHashMap<>();
+
+    //上一次对账发现偏差的优惠券
+    private Set<Long> driftedLastRun = Collections.emptySet();
+
+    private Timer duration;
+
+    @PostConstruct
+    private void init() {
+        //对账依赖订单集合，集合被压缩之后SCARD为0，会被误判为redis丢失了所有订单
+        if (enabled && compactEnabled && retainHours >= compactAfterHours) {
+            throw new IllegalStateException("hmdp.seckill.reconcile.retain-hours(" + retainHours
+                    + ")必须小于hmdp.seckill.compact.after-hours(" + compactAfterHours + ")");
+        }
+        duration = Timer.builder("seckill.reconcile.duration").register(meterRegistry);
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.reconcile.initial-delay-ms:30000}",
+            fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        //同一时间只需要一个节点执行
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_RECONCILE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            duration.record(this::doReconcile);
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doReconcile() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now)
+                .ge("end_time", now.minusHours(retainHours))
+                .list();
+        //消息队列中还有未处理的订单时，偏差可能只是处理延迟，只上报不修复
+        boolean settled = isStreamSettled();
+        Set<Long> drifted = new HashSet<>();
+        for (SeckillVoucher voucher : vouchers) {
+            try {
+                if (reconcile(voucher, now, settled)) {
+                    drifted.add(voucher.getVoucherId());
+                }
+            } catch (Exception e) {
+                log.error("秒杀券对账失败: {}", voucher.getVoucherId(), e);
+            }
+        }
+        driftedLastRun = drifted;
+        //离开对账窗口的秒杀券删除偏差指标，指标的数量不随秒杀券的数量增长
+        Set<Long> active = vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toSet());
+        removeDrifts(orderDrifts, "seckill.reconcile.order.drift", active);
+        removeDrifts(stockDrifts, "seckill.reconcile.stock.drift", active);
+    }
+
+    //对账一个秒杀券，返回是否存在偏差
+    private boolean reconcile(SeckillVoucher voucher, LocalDateTime now, boolean settled) {
+        Long voucherId = voucher.getVoucherId();
+        Long redisStock = redisStock(voucherId);
+        if (redisStock == null) {
+            //库存还没有写入redis（等待预热）
+            return false;
+        }
+        long leased = leasedStock(voucherId);
+        int shards = shardsOf(voucherId);
+        if (isCompacted(voucherId, shards)) {
+            //订单集合已经压缩为位图（或者放弃压缩），不再对账
+            return false;
+        }
+        long redisOrders = 0;
+        for (int i = 0; i < shards; i++) {
+            Long size = stringRedisTemplate.opsForSet().size(seckillKeys.order(voucherId, i));
+            redisOrders += size == null ? 0 : size;
+        }
+        long dbOrders = countOrders(voucherId, now);
+        long orderDrift = redisOrders - dbOrders;
+        long stockDrift = redisStock + leased - voucher.getStock();
+        drift(orderDrifts, "seckill.reconcile.order.drift", voucherId).set(orderDrift);
+        drift(stockDrifts, "seckill.reconcile.stock.drift", voucherId).set(stockDrift);
+        if (orderDrift == 0 && stockDrift == 0) {
+            return false;
+        }
+        log.warn("秒杀券{}存在偏差：订单{}，库存{}", voucherId, orderDrift, stockDrift);
+        //连续两次都存在偏差、并且消息队列没有积压时才修复
+        if (!settled || "none".equals(repair) || !driftedLastRun.contains(voucherId)) {
+            return true;
+        }
+        if (orderDrift != 0) {
+            //先修复订单，库存等下一次对账（订单处理完毕之后）再修复
+            if (tryStartRepair(voucherId, now)) {
+                repairOrders(voucherId, shards);
+            }
+        } else {
+            repairStock(voucherId, stockDrift);
+        }
+        return true;
+    }
+
+    //距离上一次修复订单超过repair-interval-minutes时记录本次修复的时间（保存在seckill:reconcile:{p}:id中，各节点共享）并返回true
+    private boolean tryStartRepair(Long voucherId, LocalDateTime now) {
+        String key = seckillKeys.reconcile(voucherId);
+        Object repairedAt = stringRedisTemplate.opsForHash().get(key, "repairedAt");
+        if (repairedAt != null
+                && toTime(Long.parseLong((String) repairedAt)).plusMinutes(repairIntervalMinutes).isAfter(now)) {
+            log.info("秒杀券{}在{}分钟之内已经修复过订单，本次跳过", voucherId, repairIntervalMinutes);
+            return false;
+        }
+        stringRedisTemplate.opsForHash().put(key, "repairedAt", String.valueOf(toMillis(now)));
+        return true;
+    }
+
+    //比较redis集合与数据库中的下单用户，分片库存时逐个分片比较
+    private void repairOrders(Long voucherId, int shards) {
+        //1.redis中有、数据库中没有的用户（消息丢失或者写入失败）
+        int missingInDb = 0;
+        for (int i = 0; i < shards; i++) {
+            List<Long> missing = missingInDb(voucherId, seckillKeys.order(voucherId, i));
+            repairMissingInDb(voucherId, shards, i, missing);
+            missingInDb += missing.size();
+        }
+        //2.数据库中有、redis中没有的用户（例如redis数据丢失），按id分页
+        List<VoucherOrder> missingInRedis = new ArrayList<>();
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query().select("id", "user_id")
+                    .eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id").last("LIMIT " + BATCH_SIZE).list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            lastId = orders.get(orders.size() - 1).getId();
+            //用户可能在任意一个分片下单
+            List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder o : orders) {
+                    for (int i = 0; i < shards; i++) {
+                        conn.sIsMember(seckillKeys.order(voucherId, i), o.getUserId().toString());
+                    }
+                }
+                return null;
+            });
+            for (int i = 0; i < orders.size(); i++) {
+                if (!members.subList(i * shards, (i + 1) * shards).contains(Boolean.TRUE)) {
+                    missingInRedis.add(orders.get(i));
+                }
+            }
+        }
+        //3.数据库中已经存在的订单总是以数据库为准：加入用户所在分片（用户id % 分片数量）的集合、记录订单id并扣减该分片的库存
+        Map<Integer, List<VoucherOrder>> byShard = missingInRedis.stream()
+                .collect(Collectors.groupingBy(o -> (int) Math.floorMod(o.getUserId(), (long) shards)));
+        byShard.forEach((shard, orders) -> {
+            stringRedisTemplate.opsForSet().add(seckillKeys.order(voucherId, shard),
+                    orders.stream().map(o -> o.getUserId().toString()).toArray(String[]::new));
+            stringRedisTemplate.opsForHash().putAll(seckillKeys.orderIds(voucherId, shard), orders.stream()
+                    .collect(Collectors.toMap(o -> o.getUserId().toString(), o -> o.getId().toString(), (a, b) -> a)));
+            stringRedisTemplate.opsForValue().increment(stockKeyForRepair(voucherId, shards, shard), -orders.size());
+        });
+        if (!missingInRedis.isEmpty()) {
+            repaired("order.redis", missingInRedis.size());
+        }
+        if (missingInDb > 0 || !missingInRedis.isEmpty()) {
+            log.warn("修复秒杀券{}的订单：数据库缺少{}个，redis缺少{}个", voucherId, missingInDb, missingInRedis.size());
+        }
+    }
+
+    //扫描一个订单集合，返回数据库中没有订单的用户
+    private List<Long> missingInDb(Long voucherId, String orderKey) {
+        List<Long> missingInDb = new ArrayList<>();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(orderKey, ScanOptions.scanOptions().count(BATCH_SIZE).build())) {
+            List<Long> batch = new ArrayList<>(BATCH_SIZE);
+            while (cursor.hasNext()) {
+                batch.add(Long.valueOf(cursor.next()));
+                if (batch.size() == BATCH_SIZE || !cursor.hasNext()) {
+                    Set<Long> exists = voucherOrderService.query().select("user_id")
+                            .eq("voucher_id", voucherId).in("user_id", batch).list()
+                            .stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+                    batch.stream().filter(userId -> !exists.contains(userId)).forEach(missingInDb::add);
+                    batch.clear();
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("扫描" + orderKey + "失败", e);
+        }
+        return missingInDb;
+    }
+
+    //修复第shard个分片中数据库缺少的订单
+    private void repairMissingInDb(Long voucherId, int shards, int shard, List<Long> missingInDb) {
+        if (missingInDb.isEmpty()) {
+            return;
+        }
+        List<String> userIds = missingInDb.stream().map(String::valueOf).collect(Collectors.toList());
+        String orderIdsKey = seckillKeys.orderIds(voucherId, shard);
+        if ("redis-to-db".equals(repair)) {
+            //以redis为准，用下单时的订单id重新发送下单消息到该分片的订单队列，由消费者写入数据库
+            //（用户已经拿到了这个订单id，换成新的id会导致用户查询不到订单；消费者按唯一索引忽略重复的订单）
+            List<Object> orderIds = stringRedisTemplate.opsForHash().multiGet(orderIdsKey, new ArrayList<>(userIds));
+            for (int i = 0; i < userIds.size(); i++) {
+                Object orderId = orderIds.get(i);
+                if (orderId == null) {
+                    //记录订单id之前下单的用户，只能生成新的订单id
+                    orderId = String.valueOf(redisIdWorker.nextId("order"));
+                    log.warn("秒杀券{}的用户{}没有记录订单id，使用新的订单id {}", voucherId, userIds.get(i), orderId);
+                }
+                Map<String, String> message = new HashMap<>(3);
+                message.put("userId", userIds.get(i));
+                message.put("voucherId", voucherId.toString());
+                message.put("id", (String) orderId);
+                stringRedisTemplate.opsForStream().add(StreamRecords.string(message)
+                        .withStreamKey(seckillKeys.stream(voucherId, shard)));
+            }
+            repaired("order.db", missingInDb.size());
+        } else {
+            //以数据库为准，移出集合并归还该分片的库存
+            stringRedisTemplate.opsForSet().remove(seckillKeys.order(voucherId, shard), userIds.toArray());
+            stringRedisTemplate.opsForHash().delete(orderIdsKey, userIds.toArray());
+            returnStock(voucherId, shards, shard, missingInDb.size());
+            repaired("order.redis", missingInDb.size());
+        }
+    }
+
+    //订单已经一致之后修复库存
+    private void repairStock(Long voucherId, long stockDrift) {
+        if ("redis-to-db".equals(repair)) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock + " + stockDrift).eq("voucher_id", voucherId).update();
+            repaired("stock.db", Math.abs(stockDrift));
+        } else if (stockDrift < 0) {
+            //redis中的库存少于数据库，归还差额
+            returnStock(voucherId, shardsOf(voucherId), 0, -stockDrift);
+            repaired("stock.redis", Math.abs(stockDrift));
+        } else {
+            stringRedisTemplate.opsForValue().increment(stockKeyForRepair(voucherId, shardsOf(voucherId), 0), -stockDrift);
+            repaired("stock.redis", Math.abs(stockDrift));
+        }
+        log.warn("修复秒杀券{}的库存，偏差{}", voucherId, stockDrift);
+    }
+
+    /**
+     * 增量统计数据库中的订单数：水位线之前的订单数保存在redis中，每次只统计水位线之后的订单
+     */
+    private long countOrders(Long voucherId, LocalDateTime now) {
+        String key = seckillKeys.reconcile(voucherId);
+        Map<Object, Object> state = stringRedisTemplate.opsForHash().entries(key);
+        long base = state.containsKey("base") ? Long.parseLong((String) state.get("base")) : 0L;
+        LocalDateTime watermark = state.containsKey("watermark")
+                ? toTime(Long.parseLong((String) state.get("watermark"))) : null;
+        LocalDateTime newWatermark = now.minusMinutes(settleMinutes);
+        if (watermark == null || newWatermark.isAfter(watermark)) {
+            //统计 (watermark, newWatermark] 之间的订单，推进水位线
+            base += voucherOrderService.query().eq("voucher_id", voucherId)
+                    .gt(watermark != null, "create_time", watermark)
+                    .le("create_time", newWatermark).count();
+            watermark = newWatermark;
+            Map<String, String> newState = new HashMap<>(2);
+            newState.put("base", String.valueOf(base));
+            newState.put("watermark", String.valueOf(toMillis(watermark)));
+            stringRedisTemplate.opsForHash().putAll(key, newState);
+        }
+        //水位线之后的订单（可能还在写入中）每次都重新统计
+        return base + voucherOrderService.query().eq("voucher_id", voucherId).gt("create_time", watermark).count();
+    }
+
+    //redis中的库存（分片库存求和），还没有写入时返回null
+    private Long redisStock(Long voucherId) {
+        String shards = stringRedisTemplate.opsForValue().get(seckillKeys.stockShards(voucherId));
+        if (shards == null) {
+            String stock = stringRedisTemplate.opsForValue().get(seckillKeys.stock(voucherId));
+            return stock == null ? null : Long.valueOf(stock);
+        }
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < Integer.parseInt(shards); i++) {
+            keys.add(seckillKeys.stockShard(voucherId, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        return values == null ? 0L : values.stream().filter(StrUtil::isNotBlank).mapToLong(Long::parseLong).sum();
+    }
+
+    //各节点租约中还没有使用的库存
+    private long leasedStock(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash().values(seckillKeys.lease(voucherId));
+        return values.stream().mapToLong(v -> Long.parseLong((String) v)).sum();
+    }
+
+    //归还库存：与归还租约一样，增加库存的同时删除售罄标记，并通知所有节点清除本地的售罄标记
+    private void returnStock(Long voucherId, int shards, int shard, long amount) {
+        if (shards > 1) {
+            //库存分片与售罄标记位于不同的槽，先增加分片的库存，再删除售罄标记
+            stringRedisTemplate.opsForValue().increment(seckillKeys.stockShard(voucherId, shard), amount);
+            stringRedisTemplate.delete(seckillKeys.soldOut(voucherId));
+        } else {
+            redisScripts.execute(RedisScripts.SECKILL_STOCK_RETURN,
+                    Arrays.asList(seckillKeys.stock(voucherId), seckillKeys.soldOut(voucherId)),
+                    String.valueOf(amount));
+        }
+        seckillSoldOutFlags.clear(voucherId);
+    }
+
+    //任一分片的订单集合已经压缩完成或者放弃压缩（seckill:compact:{p}:id中有status）
+    private boolean isCompacted(Long voucherId, int shards) {
+        for (int i = 0; i < shards; i++) {
+            if (stringRedisTemplate.opsForHash().hasKey(seckillKeys.compact(voucherId, i), "status")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //分片库存的分片数量，不分片时为1（只有第0个分片的订单集合，即seckill:order:{p}:id）
+    private int shardsOf(Long voucherId) {
+        String shards = stringRedisTemplate.opsForValue().get(seckillKeys.stockShards(voucherId));
+        return shards == null ? 1 : Integer.parseInt(shards);
+    }
+
+    //修复时调整的库存key，分片库存调整第shard个分片
+    private String stockKeyForRepair(Long voucherId, int shards, int shard) {
+        return shards > 1 ? seckillKeys.stockShard(voucherId, shard) : seckillKeys.stock(voucherId);
+    }
+
+    //所有订单队列的消费者组都已经读取了所有消息，并且没有待确认的消息
+    private boolean isStreamSettled() {
+        try {
+            for (String stream : seckillKeys.streams()) {
+                PendingMessagesSummary pending = stringRedisTemplate.opsForStream()
+                        .pending(stream, SECKILL_ORDER_GROUP);
+                if (pending != null && pending.getTotalPendingMessages() > 0) {
+                    return false;
+                }
+                StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(stream);
+                boolean settled = stringRedisTemplate.opsForStream().groups(stream).stream()
+                        .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                        .anyMatch(group -> info.lastGeneratedId().equals(group.lastDeliveredId()));
+                if (!settled) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("查询消息队列状态失败", e);
+            return false;
+        }
+    }
+
+    private AtomicLong drift(Map<Long, AtomicLong> drifts, String name, Long voucherId) {
+        return drifts.computeIfAbsent(voucherId, id -> {
+            AtomicLong value = new AtomicLong();
+            Gauge.builder(name, value, AtomicLong::get).tag("voucher", id.toString()).register(meterRegistry);
+            return value;
+        });
+    }
+
+    private void removeDrifts(Map<Long, AtomicLong> drifts, String name, Set<Long> active) {
+        drifts.keySet().removeIf(voucherId -> {
+            if (active.contains(voucherId)) {
+                return false;
+            }
+            Gauge gauge = meterRegistry.find(name).tag("voucher", voucherId.toString()).gauge();
+            if (gauge != null) {
+                meterRegistry.remove(gauge);
+            }
+            return true;
+        });
+    }
+
+    private void repaired(String type, long amount) {
+        Counter.builder("seckill.reconcile.repaired").tag("type", type).register(meterRegistry).increment(amount);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}
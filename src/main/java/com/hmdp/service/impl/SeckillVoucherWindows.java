@@ -0,0 +1,174 @@
+package com.hmdp.service.impl;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀时间窗口
+ * <p>
+ * 开始、结束时间（毫秒时间戳）保存在redis的seckill:voucher:{p}:id哈希中，秒杀脚本在扣减库存之前原子地校验；
+ * JVM内缓存一份，未开始或者已结束的请求不需要访问redis。哈希不存在时（旧的优惠券）从数据库加载并写回redis。
+ * 同时缓存秒杀券的库存分片数量（创建时写入的seckill:stock:{p}:id:shards），秒杀时按秒杀券自己的分片数量选择脚本，
+ * 修改hmdp.seckill.stock.shards只影响之后创建的秒杀券
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Component
+public class SeckillVoucherWindows {
+    //不是秒杀券（数据库中不存在），校验时同样不限制时间，由isSeckill区分
+    private static final Window NOT_SECKILL = new Window(Long.MIN_VALUE, Long.MAX_VALUE, 1);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Value("${hmdp.seckill.window.cache-seconds:60}")
+    private long cacheSeconds;
+
+    //优惠券id -> 时间窗口和库存分片数量
+    private LoadingCache<Long, Window> windows;
+
+    @PostConstruct
+    private void init() {
+        windows = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(cacheSeconds, TimeUnit.SECONDS)
+                .build(this::load);
+    }
+
+    /**
+     * 校验秒杀时间窗口
+     *
+     * @return 不在时间窗口内时返回错误信息，否则返回null
+     */
+    public String check(Long voucherId) {
+        Window window = windows.get(voucherId);
+        long now = System.currentTimeMillis();
+        if (now < window.begin) {
+            return "秒杀尚未开始！";
+        }
+        if (now > window.end) {
+            return "秒杀已经结束！";
+        }
+        return null;
+    }
+
+    /**
+     * 秒杀是否已经结束
+     */
+    public boolean isEnded(Long voucherId) {
+        return System.currentTimeMillis() > windows.get(voucherId).end;
+    }
+
+    /**
+     * 秒杀的{开始时间, 结束时间}（毫秒时间戳），没有时间限制时返回null
+     */
+    public long[] window(Long voucherId) {
+        Window window = windows.get(voucherId);
+        return window.isUnbounded() ? null : new long[]{window.begin, window.end};
+    }
+
+    /**
+     * 秒杀券的库存分片数量，不分片（或者库存尚未写入redis）时为1
+     */
+    public int stockShards(Long voucherId) {
+        return windows.get(voucherId).shards;
+    }
+
+    /**
+     * 秒杀脚本发现缓存的分片数量已经过期（缓存时库存尚未预热）时调用，重新加载
+     */
+    public void refresh(Long voucherId) {
+        windows.invalidate(voucherId);
+    }
+
+    /**
+     * 是否是秒杀券（redis中有时间窗口，或者数据库中存在）
+     */
+    public boolean isSeckill(Long voucherId) {
+        return windows.get(voucherId) != NOT_SECKILL;
+    }
+
+    /**
+     * 新增或修改秒杀券之后调用，写入redis并刷新本地缓存
+     */
+    public void save(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        if (beginTime == null || endTime == null) {
+            //没有时间限制
+            stringRedisTemplate.delete(seckillKeys.voucher(voucherId));
+        } else {
+            saveToRedis(voucherId, beginTime, endTime);
+        }
+        windows.invalidate(voucherId);
+    }
+
+    private Window load(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(seckillKeys.voucher(voucherId), Arrays.asList("begin", "end"));
+        String stockShards = stringRedisTemplate.opsForValue().get(seckillKeys.stockShards(voucherId));
+        int shards = stockShards == null ? 1 : Integer.parseInt(stockShards);
+        if (values.get(0) != null && values.get(1) != null) {
+            return new Window(Long.parseLong((String) values.get(0)), Long.parseLong((String) values.get(1)), shards);
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return NOT_SECKILL;
+        }
+        if (voucher.getBeginTime() == null || voucher.getEndTime() == null) {
+            return new Window(Long.MIN_VALUE, Long.MAX_VALUE, shards);
+        }
+        saveToRedis(voucherId, voucher.getBeginTime(), voucher.getEndTime());
+        return new Window(toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()), shards);
+    }
+
+    private void saveToRedis(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toMillis(beginTime)));
+        window.put("end", String.valueOf(toMillis(endTime)));
+        stringRedisTemplate.opsForHash().putAll(seckillKeys.voucher(voucherId), window);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    //{开始时间, 结束时间}（毫秒时间戳）和库存分片数量
+    private static class Window {
+        private final long begin;
+        private final long end;
+        private final int shards;
+
+        private Window(long begin, long end, int shards) {
+            this.begin = begin;
+            this.end = end;
+            this.shards = shards;
+        }
+
+        //没有时间限制
+        private boolean isUnbounded() {
+            return begin == Long.MIN_VALUE && end == Long.MAX_VALUE;
+        }
+    }
+}
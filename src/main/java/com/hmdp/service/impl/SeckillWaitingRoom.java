@@ -0,0 +1,205 @@
+package com.hmdp.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.hmdp.dto.QueueTicketDTO;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀排队（虚拟等候室）
+ * <p>
+ * 开启后用户需要先排队领取号码（queue_join.lua：INCR号码计数器，ZADD到排队集合，重复排队返回原来的号码），
+ * 秒杀开始后每隔batch-interval-ms放行batch-size个号码（queue_admit.lua，任一节点调用都只按经过的时间推进，无需定时任务和锁），
+ * 号码不大于已放行进度的用户才能调用秒杀接口，这样redis和数据库看到的是平稳的下单速率，而不是开始瞬间的全部请求。
+ * 放行进度在每个节点本地缓存refresh-ms毫秒，排队位置和预计等待时间都由缓存的进度计算，用户的号码也缓存在本地，
+ * 查询进度基本不访问redis。秒杀券售罄后（本地售罄标记或者redis中的售罄标记）自动关闭排队，请求直接由秒杀脚本判断
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Component
+public class SeckillWaitingRoom {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    @Resource
+    private SeckillVoucherWindows seckillVoucherWindows;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.waiting-room.enabled:false}")
+    private boolean enabled;
+
+    //每批放行的号码数量
+    @Value("${hmdp.seckill.waiting-room.batch-size:200}")
+    private long batchSize;
+
+    @Value("${hmdp.seckill.waiting-room.batch-interval-ms:1000}")
+    private long batchIntervalMs;
+
+    //放行进度在本地缓存的毫秒数
+    @Value("${hmdp.seckill.waiting-room.refresh-ms:200}")
+    private long refreshMs;
+
+    @Value("${hmdp.seckill.waiting-room.ttl-hours:24}")
+    private long ttlHours;
+
+    //秒杀券id -> 已放行的最大号码，-1表示已售罄
+    private LoadingCache<Long, Long> admitted;
+
+    //秒杀券id:用户id -> 排队号码（号码发出后不会改变）
+    private Cache<String, Long> tickets;
+
+    private Counter joined;
+
+    private Counter rejected;
+
+    @PostConstruct
+    private void init() {
+        admitted = Caffeine.newBuilder()
+                .refreshAfterWrite(refreshMs, TimeUnit.MILLISECONDS)
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build(this::admit);
+        tickets = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(ttlHours, TimeUnit.HOURS)
+                .build();
+        joined = Counter.builder("seckill.queue.joined").register(meterRegistry);
+        rejected = Counter.builder("seckill.queue.rejected").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 排队领取号码
+     */
+    public QueueTicketDTO join(Long voucherId, Long userId) {
+        if (!enabled || seckillSoldOutFlags.isSoldOut(voucherId)) {
+            return status(voucherId, userId);
+        }
+        Long ticket = tickets.getIfPresent(ticketKey(voucherId, userId));
+        if (ticket == null) {
+            ticket = redisScripts.execute(RedisScripts.QUEUE_JOIN,
+                    Arrays.asList(seckillKeys.queueSeq(voucherId), seckillKeys.queue(voucherId), seckillKeys.soldOut(voucherId)),
+                    userId.toString(),
+                    String.valueOf(TimeUnit.HOURS.toMillis(ttlHours)));
+            if (ticket != null && ticket > 0) {
+                tickets.put(ticketKey(voucherId, userId), ticket);
+                joined.increment();
+            }
+        }
+        return status(voucherId, userId);
+    }
+
+    /**
+     * 查询排队进度
+     */
+    public QueueTicketDTO status(Long voucherId, Long userId) {
+        QueueTicketDTO dto = new QueueTicketDTO();
+        dto.setVoucherId(voucherId);
+        long progress = progressOf(voucherId);
+        if (progress < 0) {
+            //已售罄，排队关闭
+            dto.setSoldOut(true);
+            dto.setAdmitted(false);
+            return dto;
+        }
+        dto.setSoldOut(false);
+        Long ticket = ticketOf(voucherId, userId);
+        dto.setTicket(ticket);
+        if (ticket == null) {
+            dto.setAdmitted(!enabled);
+            return dto;
+        }
+        long position = Math.max(ticket - progress, 0);
+        dto.setPosition(position);
+        dto.setAdmitted(position == 0);
+        //还需要等待的批数 * 每批的间隔
+        dto.setEtaMillis((position + batchSize - 1) / batchSize * batchIntervalMs);
+        return dto;
+    }
+
+    /**
+     * 秒杀接口调用：开启排队时，只有号码已经被放行的用户才能下单
+     */
+    public boolean isAdmitted(Long voucherId, Long userId) {
+        if (!enabled) {
+            return true;
+        }
+        long progress = progressOf(voucherId);
+        if (progress < 0) {
+            //已售罄，由秒杀脚本直接返回库存不足
+            return true;
+        }
+        Long ticket = ticketOf(voucherId, userId);
+        if (ticket != null && ticket <= progress) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    private long progressOf(Long voucherId) {
+        if (seckillSoldOutFlags.isSoldOut(voucherId)) {
+            return -1;
+        }
+        Long progress = admitted.get(voucherId);
+        return progress == null ? 0 : progress;
+    }
+
+    //推进并读取放行进度，秒杀尚未开始时只读取；刷新失败时caffeine继续使用上一次的进度
+    private Long admit(Long voucherId) {
+        return redisScripts.execute(RedisScripts.QUEUE_ADMIT,
+                Arrays.asList(seckillKeys.queueSeq(voucherId), seckillKeys.queueAdmit(voucherId), seckillKeys.soldOut(voucherId)),
+                String.valueOf(System.currentTimeMillis()),
+                String.valueOf(batchSize),
+                String.valueOf(batchIntervalMs),
+                seckillVoucherWindows.check(voucherId) == null ? "1" : "0",
+                String.valueOf(TimeUnit.HOURS.toMillis(ttlHours)));
+    }
+
+    private Long ticketOf(Long voucherId, Long userId) {
+        String key = ticketKey(voucherId, userId);
+        Long ticket = tickets.getIfPresent(key);
+        if (ticket != null) {
+            return ticket;
+        }
+        //其他节点发出的号码
+        Double score = stringRedisTemplate.opsForZSet().score(seckillKeys.queue(voucherId), userId.toString());
+        if (score == null) {
+            return null;
+        }
+        ticket = score.longValue();
+        tickets.put(key, ticket);
+        return ticket;
+    }
+
+    private static String ticketKey(Long voucherId, Long userId) {
+        return voucherId + ":" + userId;
+    }
+}
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -31,6 +32,8 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -57,9 +60,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop>
         //                (CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         //缓存击穿方案（互斥锁解决）
-        //Shop shop = queryWithMutex(id);
+        //Shop shop = cacheClient.queryWithMutex
+        //        (CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
-        //缓存击穿方案（逻辑过期）
+        //缓存击穿方案（逻辑过期），热点店铺自动升级为逻辑过期，不需要提前预热
         Shop shop = cacheClient.queryWithLogicalExpire
                 (CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.MINUTES);
 
@@ -69,68 +73,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop>
         return Result.ok(shop);
     }
 
-    //public Shop queryWithMutex(Long id) {
-    //    String key = CACHE_SHOP_KEY + id;
-    //    //从redis中查询商铺缓存
-    //    String shopJson = stringRedisTemplate.opsForValue().get(key);
-    //    //判断缓存是否命中
-    //    if (StrUtil.isNotBlank(shopJson)) {
-    //        //命中，直接返回商铺信息
-    //        return JSONUtil.toBean(shopJson, Shop.class);
-    //    }
-    //    //判断命中的是否是redis的空值（缓存击穿解决）
-    //    if (shopJson != null) {
-    //        return null;
-    //    }
-    //    //未命中，尝试获取互斥锁
-    //    String lockKey = "lock:shop:" + id;
-    //    boolean isLock = false;
-    //    Shop shop = null;
-    //    try {
-    //        //获取互斥锁
-    //        isLock = tryLock(lockKey);
-    //        //判断是否获取成功
-    //        if (!isLock) {//失败
-    //            //等待并重试
-    //            Thread.sleep(50);
-    //            //直到缓存命中，或者获取到锁
-    //            return queryWithMutex(id);
-    //        }
-    //        //获取锁成功，开始重建缓存
-    //        //根据id查询数据库，判断商铺是否存在数据库中
-    //        shop = getById(id);
-    //        //模拟重建缓存的延迟-----------
-    //        Thread.sleep(200);
-    //        if (shop == null) {
-    //            //不存在，防止缓存穿透，将空值存入redis，TTL设置为2min
-    //            stringRedisTemplate.opsForValue().set(key, "",
-    //                    CACHE_NULL_TTL, TimeUnit.MINUTES);
-    //            //返回错误信息
-    //            return null;
-    //        }
-    //        //存在，则将商铺数据写入redis中
-    //        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop),
-    //                CACHE_SHOP_TTL, TimeUnit.MINUTES);
-    //    } catch (InterruptedException e) {
-    //        throw new RuntimeException(e);
-    //    } finally {
-    //        //释放互斥锁
-    //        unLock(lockKey);
-    //    }
-    //    //返回从缓存或数据库中查到的数据
-    //    return shop;
-    //}
-    //
-    //private boolean tryLock(String key) {
-    //    Boolean flag = stringRedisTemplate.opsForValue()
-    //            .setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-    //    return BooleanUtil.isTrue(flag);
-    //}
-    //
-    //private void unLock(String key) {
-    //    stringRedisTemplate.delete(key);
-    //}
-
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -140,8 +82,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop>
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除redis缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //2.删除redis缓存，并通知所有节点删除本地缓存
+        cacheClient.evict(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -195,14 +137,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop>
             distanceMap.put(shopIdStr, distance);
         });
 
-        //5.根据id查询店铺Shop
-        String idStr = StrUtil.join(",", ids);
-        //从数据库中查询店铺详细信息
-        List<Shop> shops =
-                query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        //设置距离信息
-        for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        //5.根据id批量查询店铺Shop（与queryById共用逻辑过期的缓存，未命中的用一次IN查询），按照ids的顺序返回
+        List<Shop> cached = cacheClient.queryBatchWithLogicalExpire(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(Shop::getId, Function.identity())),
+                20L, TimeUnit.MINUTES);
+        //设置距离信息（缓存中的对象是共享的，复制一份再设置）
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached) {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(copy);
         }
         //6.返回
         return Result.ok(shops);
@@ -0,0 +1,479 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillKeys;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * stream.orders:{p}消息队列的消费者池
+ * <p>
+ * 每个节点启动threads个读取线程，每个读取线程都是消费者组g1中名称唯一的消费者（主机名+端口+序号），
+ * 订单队列按秒杀券分为partitions个，每个读取线程负责其中一个（队列少于线程时多个线程读取同一个队列）或者轮流读取其中几个，
+ * 读取到的订单按userId哈希分派到threads个分区线程，同一个用户的订单总是由同一个分区线程串行处理，
+ * 分区线程一次取出积压的至多batchSize个订单，在一个事务中聚合扣减库存、批量插入，再用一次XACK确认整批消息，
+ * 跨节点的并发（以及重复投递的消息）由tb_voucher_order的(user_id, voucher_id)唯一索引保证一人一单。
+ * <p>
+ * 处理失败的消息留在读取者的pending-list中，读取者定期用XPENDING查看投递次数，按指数退避的间隔XCLAIM给自己重新处理，
+ * 投递达到maxAttempts次之后转入stream.orders.dlq死信队列并ACK；其他节点上空闲超过claimIdleMs的消息（节点宕机）
+ * 由负责该队列的读取者XCLAIM过来处理，claimIdleMs应当大于最大退避间隔
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class VoucherOrderConsumer {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Value("${hmdp.seckill.consumer.threads:4}")
+    private int threads;
+
+    @Value("${hmdp.seckill.consumer.queue-capacity:1024}")
+    private int queueCapacity;
+
+    @Value("${hmdp.seckill.consumer.batch-size:50}")
+    private int batchSize;
+
+    //投递次数达到该值仍处理失败的消息转入死信队列
+    @Value("${hmdp.seckill.consumer.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${hmdp.seckill.consumer.backoff-base-ms:100}")
+    private long backoffBaseMs;
+
+    @Value("${hmdp.seckill.consumer.backoff-max-ms:30000}")
+    private long backoffMaxMs;
+
+    //其他节点的消费者空闲超过该时间的消息被认为无人处理
+    @Value("${hmdp.seckill.consumer.claim-idle-ms:60000}")
+    private long claimIdleMs;
+
+    //检查pending-list的间隔
+    @Value("${hmdp.seckill.consumer.recover-interval-ms:1000}")
+    private long recoverIntervalMs;
+
+    @Value("${server.port:8081}")
+    private int port;
+
+    private volatile boolean running = true;
+
+    private ExecutorService readerExecutor;
+
+    private ExecutorService partitionExecutor;
+
+    private Partition[] partitions;
+
+    //本节点所有读取者的名称
+    private final Set<String> localConsumers = new HashSet<>();
+
+    private Counter claimed;
+
+    private Counter deadLettered;
+
+    //在当前类初始化完毕之后就执行
+    @PostConstruct
+    private void init() {
+        createGroupIfAbsent();
+        //消费者名称在重启后保持不变，这样重启后仍能处理自己遗留的pending-list
+        String instanceId = NetUtil.getLocalHostName() + ":" + port;
+        partitions = new Partition[threads];
+        partitionExecutor = Executors.newFixedThreadPool(threads,
+                ThreadUtil.newNamedThreadFactory("order-partition-", false));
+        for (int i = 0; i < threads; i++) {
+            partitions[i] = new Partition(i);
+            partitionExecutor.submit(partitions[i]);
+        }
+        claimed = Counter.builder("seckill.order.consumer.claimed").register(meterRegistry);
+        deadLettered = Counter.builder("seckill.order.consumer.dead").register(meterRegistry);
+        readerExecutor = Executors.newFixedThreadPool(threads,
+                ThreadUtil.newNamedThreadFactory("order-reader-", false));
+        for (int i = 0; i < threads; i++) {
+            localConsumers.add("c-" + instanceId + "-" + i);
+        }
+        List<String> streams = seckillKeys.streams();
+        for (int i = 0; i < threads; i++) {
+            readerExecutor.submit(new Reader(Consumer.from(SECKILL_ORDER_GROUP, "c-" + instanceId + "-" + i),
+                    streamsOf(i, streams)));
+        }
+    }
+
+    //第i个读取者负责的订单队列：队列不多于线程时读取第i % partitions个，否则读取序号对threads取余等于i的几个
+    private List<String> streamsOf(int reader, List<String> streams) {
+        if (streams.size() <= threads) {
+            return Collections.singletonList(streams.get(reader % streams.size()));
+        }
+        List<String> owned = new ArrayList<>();
+        for (int j = reader; j < streams.size(); j += threads) {
+            owned.add(streams.get(j));
+        }
+        return owned;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        readerExecutor.shutdownNow();
+        partitionExecutor.shutdownNow();
+    }
+
+    //XGROUP CREATE stream.orders:{p} g1 0 MKSTREAM，消费者组已存在时忽略
+    private void createGroupIfAbsent() {
+        for (String stream : seckillKeys.streams()) {
+            try {
+                stringRedisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"), SECKILL_ORDER_GROUP);
+            } catch (Exception e) {
+                log.debug("消费者组已存在: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 将读取到的消息按userId分派到对应的分区，分区已满时阻塞，从而不再继续读取消息
+     */
+    private void dispatch(Reader owner, List<MapRecord<String, Object, Object>> list) throws InterruptedException {
+        for (MapRecord<String, Object, Object> record : list) {
+            Map<Object, Object> values = record.getValue();
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+            int index = (int) Math.floorMod(voucherOrder.getUserId(), (long) threads);
+            owner.inFlight.add(taskKey(record.getStream(), record.getId()));
+            partitions[index].queue.put(new OrderTask(record, voucherOrder, owner));
+        }
+    }
+
+    private boolean handleVoucherOrder(VoucherOrder voucherOrder) {
+        //不再需要分布式锁：写入订单与扣减库存在同一个事务中，重复的订单由唯一索引拒绝
+        return voucherOrderService.createVoucherOrder(voucherOrder);
+    }
+
+    //一条待处理的订单消息，以及读取它的消费者
+    private static class OrderTask {
+        private final MapRecord<String, Object, Object> record;
+        private final VoucherOrder voucherOrder;
+        private final Reader owner;
+
+        private OrderTask(MapRecord<String, Object, Object> record, VoucherOrder voucherOrder, Reader owner) {
+            this.record = record;
+            this.voucherOrder = voucherOrder;
+            this.owner = owner;
+        }
+
+        private String key() {
+            return taskKey(record.getStream(), record.getId());
+        }
+    }
+
+    //不同队列的消息id可能相同，按队列+id区分消息
+    private static String taskKey(String stream, RecordId id) {
+        return stream + "/" + id.getValue();
+    }
+
+    //XCLAIM stream.orders:{p} g1 newOwner minIdle id... ，返回转移成功的消息
+    private List<MapRecord<String, Object, Object>> claim(String stream, String newOwner, Duration minIdle, RecordId... ids) {
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(stream.getBytes(StandardCharsets.UTF_8),
+                        SECKILL_ORDER_GROUP, newOwner, RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        return records.stream()
+                .map(r -> r.<String, Object, Object>deserialize(StringRedisSerializer.UTF_8,
+                        StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8).withStreamKey(stream))
+                .collect(Collectors.toList());
+    }
+
+    //第n次投递失败之后，至少等待多久再重新投递
+    private long backoff(long deliveries) {
+        long shift = Math.min(Math.max(deliveries - 1, 0), 30);
+        return Math.min(backoffBaseMs << shift, backoffMaxMs);
+    }
+
+    //读取线程：XREADGROUP读取消息并分派到分区，定期重新处理自己pending-list中失败的消息
+    private class Reader implements Runnable {
+        private final Consumer consumer;
+        //负责读取的订单队列
+        private final List<String> streams;
+        //下一次读取的队列
+        private int cursor;
+        //已分派但尚未处理完的消息（队列/id）
+        private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+        //处理失败的消息最近一次的异常，写入死信队列时一并记录
+        private final Map<String, String> lastErrors = new ConcurrentHashMap<>();
+        //启动时先处理上次遗留的pending-list
+        private long nextRecoverAt;
+        private long nextClaimAt;
+        private final Counter readCounter;
+
+        private Reader(Consumer consumer, List<String> streams) {
+            this.consumer = consumer;
+            this.streams = streams;
+            this.readCounter = Counter.builder("seckill.order.consumer.read")
+                    .tag("consumer", consumer.getName())
+                    .register(meterRegistry);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    long now = System.currentTimeMillis();
+                    if (now >= nextRecoverAt) {
+                        nextRecoverAt = now + recoverIntervalMs;
+                        for (String stream : streams) {
+                            handlePendingList(stream);
+                        }
+                    }
+                    if (now >= nextClaimAt) {
+                        nextClaimAt = now + claimIdleMs / 2;
+                        for (String stream : streams) {
+                            claimIdleMessages(stream);
+                        }
+                    }
+                    //负责多个队列时轮流读取，每个队列阻塞的时间平分检查间隔
+                    String stream = streams.get(cursor++ % streams.size());
+                    long block = Math.max(recoverIntervalMs / streams.size(), 1);
+                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c-xxx COUNT batchSize BLOCK block STREAMS stream.orders:{p} >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(block)),
+                            StreamOffset.create(stream, ReadOffset.lastConsumed())
+                    );
+                    //2.判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        //获取失败，说明没有消息，继续下一次循环
+                        continue;
+                    }
+                    readCounter.increment(list.size());
+                    //3.分派到分区线程，由分区线程创建订单并ACK
+                    dispatch(this, list);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                    //redis异常时稍后再试，避免空转
+                    ThreadUtil.sleep(backoffBaseMs);
+                }
+            }
+        }
+
+        private void handlePendingList(String stream) throws InterruptedException {
+            //1.查看自己pending-list中的消息及其投递次数 XPENDING stream.orders:{p} g1 - + count c-xxx
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    stream, consumer, Range.unbounded(), queueCapacity);
+            List<RecordId> due = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (inFlight.contains(taskKey(stream, message.getId()))) {
+                    //已分派，仍在处理中
+                    continue;
+                }
+                //2.投递次数用完，转入死信队列
+                if (message.getTotalDeliveryCount() >= maxAttempts) {
+                    deadLetter(stream, message);
+                    continue;
+                }
+                //3.距离上次投递超过退避间隔的消息重新处理
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() >= backoff(message.getTotalDeliveryCount())) {
+                    due.add(message.getId());
+                }
+            }
+            if (due.isEmpty()) {
+                return;
+            }
+            //4.XCLAIM给自己，投递次数加一，同时取回消息内容
+            List<MapRecord<String, Object, Object>> list = claim(stream, consumer.getName(),
+                    Duration.ofMillis(backoffBaseMs), due.toArray(new RecordId[0]));
+            //5.重新分派，处理完毕后会被ACK从pending-list中移除
+            dispatch(this, list);
+        }
+
+        //把消息内容和失败信息写入stream.orders.dlq，再ACK原消息
+        private void deadLetter(String stream, PendingMessage message) {
+            RecordId id = message.getId();
+            Map<String, String> fields = new HashMap<>();
+            stringRedisTemplate.opsForStream().range(stream, Range.closed(id.getValue(), id.getValue()))
+                    .forEach(r -> r.getValue().forEach((k, v) -> fields.put(k.toString(), v.toString())));
+            fields.put("source", stream);
+            fields.put("sourceId", id.getValue());
+            fields.put("deliveries", String.valueOf(message.getTotalDeliveryCount()));
+            fields.put("consumer", consumer.getName());
+            String error = lastErrors.remove(taskKey(stream, id));
+            if (error != null) {
+                fields.put("error", error);
+            }
+            stringRedisTemplate.opsForStream().add(StreamRecords.string(fields).withStreamKey(SECKILL_ORDER_DLQ_STREAM));
+            stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, id);
+            deadLettered.increment();
+            if (fields.containsKey("id")) {
+                orderStatusTracker.failed(Collections.singletonList(
+                        BeanUtil.fillBeanWithMap(fields, new VoucherOrder(), true)), "订单处理失败");
+            }
+            log.error("订单消息{}投递{}次仍处理失败，转入死信队列: {}", id, message.getTotalDeliveryCount(), error);
+        }
+
+        //接管其他节点的消费者空闲超过claimIdleMs的消息，下一次检查pending-list时按退避间隔处理
+        private void claimIdleMessages(String stream) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                    .pending(stream, SECKILL_ORDER_GROUP);
+            if (summary == null) {
+                return;
+            }
+            for (String name : summary.getPendingMessagesPerConsumer().keySet()) {
+                if (localConsumers.contains(name)) {
+                    continue;
+                }
+                RecordId[] ids = stringRedisTemplate.opsForStream()
+                        .pending(stream, Consumer.from(SECKILL_ORDER_GROUP, name), Range.unbounded(), queueCapacity)
+                        .stream()
+                        .filter(m -> m.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMs)
+                        .map(PendingMessage::getId)
+                        .toArray(RecordId[]::new);
+                if (ids.length == 0) {
+                    continue;
+                }
+                //XCLAIM会再次校验空闲时间，多个节点同时接管时只有一个成功
+                int count = claim(stream, consumer.getName(), Duration.ofMillis(claimIdleMs), ids).size();
+                claimed.increment(count);
+                log.warn("接管消费者{}遗留的订单消息{}条", name, count);
+            }
+        }
+    }
+
+    //分区线程：串行处理分派到本分区的订单（同一userId总是落在同一分区）
+    private class Partition implements Runnable {
+        private final BlockingQueue<OrderTask> queue;
+        private final Counter processed;
+        private final Counter failed;
+        //最近一条消息从写入stream到处理完成的毫秒数
+        private final AtomicLong lagMillis = new AtomicLong();
+
+        private Partition(int index) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            String partition = String.valueOf(index);
+            this.processed = Counter.builder("seckill.order.consumer.processed")
+                    .tag("partition", partition).register(meterRegistry);
+            this.failed = Counter.builder("seckill.order.consumer.failed")
+                    .tag("partition", partition).register(meterRegistry);
+            Gauge.builder("seckill.order.consumer.queue", queue, BlockingQueue::size)
+                    .tag("partition", partition).register(meterRegistry);
+            Gauge.builder("seckill.order.consumer.lag", lagMillis, AtomicLong::get)
+                    .tag("partition", partition).baseUnit("milliseconds").register(meterRegistry);
+        }
+
+        @Override
+        public void run() {
+            List<OrderTask> batch = new ArrayList<>(batchSize);
+            while (running) {
+                try {
+                    OrderTask task = queue.poll(1, TimeUnit.SECONDS);
+                    if (task == null) {
+                        continue;
+                    }
+                    //一次取出本分区积压的至多batchSize个订单
+                    batch.add(task);
+                    queue.drainTo(batch, batchSize - 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    if (batch.size() == 1) {
+                        handleTask(batch.get(0));
+                    } else {
+                        handleBatch(batch);
+                    }
+                } finally {
+                    batch.forEach(t -> t.owner.inFlight.remove(t.key()));
+                    batch.clear();
+                }
+            }
+        }
+
+        private void handleBatch(List<OrderTask> batch) {
+            try {
+                //4.在一个事务中批量创建订单
+                List<VoucherOrder> orders = batch.stream().map(t -> t.voucherOrder).collect(Collectors.toList());
+                List<VoucherOrder> saved = voucherOrderService.createVoucherOrders(orders);
+                //事务提交之后、ACK之前写入订单状态（ACK失败时逐条重新处理会被判为重复下单，不能覆盖成功的状态）
+                complete(orders, saved);
+                //5.按队列一次性ACK整批消息 XACK stream.orders:{p} g1 id1 id2 ...
+                batch.stream().collect(Collectors.groupingBy(t -> t.record.getStream(),
+                        Collectors.mapping(t -> t.record.getId(), Collectors.toList())))
+                        .forEach((stream, ids) -> stringRedisTemplate.opsForStream()
+                                .acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+                processed.increment(batch.size());
+                batch.forEach(t -> t.owner.lastErrors.remove(t.key()));
+                lagMillis.set(System.currentTimeMillis() - batch.get(batch.size() - 1).record.getId().getTimestamp());
+            } catch (Exception e) {
+                log.error("批量处理订单异常，改为逐条处理", e);
+                //逐条处理（一人一单校验会跳过已写入的订单），使异常的订单只影响它自己
+                batch.forEach(this::handleTask);
+            }
+        }
+
+        //写入订单状态：写入数据库的订单成功，其余的（库存不足或者重复下单）失败
+        private void complete(List<VoucherOrder> orders, List<VoucherOrder> saved) {
+            Set<Long> savedIds = saved.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            orderStatusTracker.succeeded(saved);
+            orderStatusTracker.failed(orders.stream().filter(o -> !savedIds.contains(o.getId()))
+                    .collect(Collectors.toList()), "库存不足或重复下单");
+        }
+
+        private void handleTask(OrderTask task) {
+            try {
+                //4.创建订单
+                List<VoucherOrder> orders = Collections.singletonList(task.voucherOrder);
+                complete(orders, handleVoucherOrder(task.voucherOrder) ? orders : Collections.emptyList());
+                //5.消息的ACK确认 XACK stream.orders:{p} g1 消息id
+                stringRedisTemplate.opsForStream().acknowledge(task.record.getStream(), SECKILL_ORDER_GROUP, task.record.getId());
+                processed.increment();
+                task.owner.lastErrors.remove(task.key());
+                lagMillis.set(System.currentTimeMillis() - task.record.getId().getTimestamp());
+            } catch (Exception e) {
+                log.error("处理订单异常", e);
+                failed.increment();
+                //消息未ACK，仍在读取者的pending-list中，由读取者退避后重新处理
+                task.owner.lastErrors.put(task.key(), String.valueOf(e));
+            }
+        }
+    }
+}
@@ -1,32 +1,29 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SeckillStockLeases;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.*;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * 服务实现类
@@ -47,93 +44,29 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillSoldOutFlags seckillSoldOutFlags;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
 
-    //类一加载就初始化脚本
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private SeckillVoucherWindows seckillVoucherWindows;
 
-    //线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
 
-    //在当前类初始化完毕之后就执行
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
 
-    //获取消息队列中的消息
-    private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+    @Resource
+    private SeckillKeys seckillKeys;
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //2.判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        //获取失败，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    //3.如果成功，将信息转为对象
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4.创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //5.消息的ACK确认 SACK stream.orders g1 消息id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePendingList();
-                }
-            }
-        }
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
 
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    //1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    //2.判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        //获取失败，说明pending-list中没有消息，退出循坏
-                        break;
-                    }
-                    //3.如果成功，将信息转为对象
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4.创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //5.消息的ACK确认 SACK stream.orders g1 消息id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending-list异常", e);
-                    try {
-                        Thread.sleep(20);//休眠20ms
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-            }
-        }
-    }
+    //脚本在启动时加载到redis，调用时只发送EVALSHA
+    @Resource
+    private RedisScripts redisScripts;
 
     //阻塞队列：当一个线程尝试从队列中获取元素时，如果队列中没有元素，那么该线程就会被阻塞，直到队列中有元素，线程才会被唤醒并获取元素
     //private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
@@ -157,54 +90,196 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //    }
     //}
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //获取用户（因为目前的是线程池对象，不是主线程，不能使用UserHolder从ThreadLocal中获取用户id）
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象，指定锁的名称
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //获取锁（可重入锁）
-        boolean isLock = lock.tryLock();
-        //判断是否获取锁成功
-        if (!isLock) {
-            //获取锁失败
-            log.error("不允许重复下单");
-        }
-        try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            //释放锁
-            lock.unlock();
-        }
-    }
-
-    private IVoucherOrderService proxy;
-
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //已经售罄的优惠券直接拒绝，不再生成订单id、不再访问redis
+        if (seckillSoldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //不在秒杀时间内的请求直接拒绝（本地缓存的时间窗口，脚本中还会用redis的时间再校验一次）
+        String error = seckillVoucherWindows.check(voucherId);
+        if (error != null) {
+            return Result.fail(error);
+        }
         //获取用户id
         Long userId = UserHolder.getUser().getId();
+        //开启排队时，号码还没有被放行的用户不能下单
+        if (!seckillWaitingRoom.isAdmitted(voucherId, userId)) {
+            return Result.fail("还没有轮到您，请先排队");
+        }
+        //订单队列积压过多时快速失败（或者短暂等待），不再继续向队列写入
+        if (!orderStreamMonitor.tryAdmit()) {
+            return Result.fail("当前抢购人数过多，请稍后再试");
+        }
+        //按秒杀券自己的分片数量选择脚本（创建时的hmdp.seckill.stock.shards），租约模式不支持分片库存
+        int shards = seckillVoucherWindows.stockShards(voucherId);
+        if (shards > 1) {
+            return seckillWithShards(voucherId, userId, shards);
+        }
+        if (seckillStockLeases.isEnabled()) {
+            return seckillWithLease(voucherId, userId);
+        }
         //获取订单id
         long orderId = redisIdWorker.nextId("order");
         //1.执行lua脚本-判断购买资格，发送信息到stream.order消息队列
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
+        Long result = redisScripts.execute(
+                RedisScripts.SECKILL,
+                seckillKeysOf(voucherId),
                 voucherId.toString(),
                 userId.toString(),
                 String.valueOf(orderId)
         );
         //2.判断结果是否为0
         int r = result.intValue();
+        if (r == 6) {
+            //本地缓存的分片数量已经过期（缓存时库存尚未预热），重新加载后按分片库存下单
+            seckillVoucherWindows.refresh(voucherId);
+            shards = seckillVoucherWindows.stockShards(voucherId);
+            return shards > 1 ? seckillWithShards(voucherId, userId, shards) : Result.fail("库存不足");
+        }
         if (r != 0) {
             //不为0，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            if (r == 1) {
+                //库存不足，通知所有节点在本地拒绝后续请求
+                seckillSoldOutFlags.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            }
+            return Result.fail(failMessage(r));
         }
-        //3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        //4.向客户返回订单id
+        //3.向客户返回订单id（订单由VoucherOrderConsumer异步写入数据库）
         return Result.ok(orderId);
     }
 
+    //分片库存：先尝试用户id对应的分片，脚本返回1（该分片没有库存）时按固定的顺序依次尝试其他分片。
+    //每个分片只检查自己的订单集合，分片库存被补充（归还、对账）时同一用户有可能在另一个分片再次下单，由数据库的唯一索引兜底
+    private Result seckillWithShards(Long voucherId, Long userId, int shards) {
+        //所有分片都已售罄时不再逐个尝试（本地售罄标记过期后由redis中的售罄标记拒绝，补充库存时删除）
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(seckillKeys.soldOut(voucherId)))) {
+            seckillSoldOutFlags.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        long orderId = redisIdWorker.nextId("order");
+        int home = (int) Math.floorMod(userId, (long) shards);
+        //时间窗口在秒杀券所在的分区，分片脚本访问不到，由本地缓存传入
+        long[] window = seckillVoucherWindows.window(voucherId);
+        String begin = window == null ? "" : String.valueOf(window[0]);
+        String end = window == null ? "" : String.valueOf(window[1]);
+        for (int i = 0; i < shards; i++) {
+            int shard = (home + i) % shards;
+            //KEYS：库存分片、该分片的订单集合、订单位图、订单队列、订单id
+            Long result = redisScripts.execute(
+                    RedisScripts.SECKILL_SHARD,
+                    Arrays.asList(seckillKeys.stockShard(voucherId, shard), seckillKeys.order(voucherId, shard),
+                            seckillKeys.orderBitmap(voucherId, shard), seckillKeys.stream(voucherId, shard),
+                            seckillKeys.orderIds(voucherId, shard)),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    begin,
+                    end
+            );
+            int r = result.intValue();
+            if (r == 0) {
+                return Result.ok(orderId);
+            }
+            if (r != 1) {
+                return Result.fail(failMessage(r));
+            }
+        }
+        //所有分片都没有库存：写入售罄标记，并通知所有节点在本地拒绝后续请求
+        stringRedisTemplate.opsForValue().set(seckillKeys.soldOut(voucherId), "1");
+        seckillSoldOutFlags.markSoldOut(voucherId);
+        return Result.fail("库存不足");
+    }
+
+    //租约模式：先扣减本节点租用的库存，redis中只校验一人一单、扣减租约余量并发送消息
+    private Result seckillWithLease(Long voucherId, Long userId) {
+        //租约被回收时丢弃本地库存，重新租用一次
+        for (int i = 0; i < 2; i++) {
+            //1.扣减本地库存
+            if (!seckillStockLeases.tryAcquire(voucherId)) {
+                //本节点租不到库存，其他节点可能仍有剩余，只在本节点标记售罄
+                seckillSoldOutFlags.markSoldOutLocally(voucherId);
+                return Result.fail("库存不足");
+            }
+            long orderId = redisIdWorker.nextId("order");
+            //2.执行lua脚本
+            Long result = redisScripts.execute(
+                    RedisScripts.SECKILL_LEASED,
+                    Arrays.asList(seckillKeys.order(voucherId), seckillKeys.lease(voucherId),
+                            seckillKeys.voucher(voucherId), seckillKeys.stream(voucherId), seckillKeys.orderBitmap(voucherId),
+                            seckillKeys.orderIds(voucherId)),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    seckillStockLeases.getNodeId()
+            );
+            int r = result.intValue();
+            if (r == 0) {
+                return Result.ok(orderId);
+            }
+            if (r != 3) {
+                //重复下单或者不在秒杀时间内，归还本地扣减的库存
+                seckillStockLeases.release(voucherId);
+                return Result.fail(failMessage(r));
+            }
+            seckillStockLeases.invalidate(voucherId);
+        }
+        return Result.fail("库存不足");
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, boolean wait) {
+        return orderStatusTracker.query(orderId, UserHolder.getUser().getId(), wait);
+    }
+
+    @Override
+    public Result joinWaitingRoom(Long voucherId) {
+        //不是秒杀券时不能排队，否则任意id都会在redis中创建排队的key
+        if (!seckillVoucherWindows.isSeckill(voucherId)) {
+            return Result.fail("秒杀券不存在！");
+        }
+        //已经结束的秒杀券不能排队，尚未开始的可以提前排队
+        if (seckillVoucherWindows.isEnded(voucherId)) {
+            return Result.fail("秒杀已经结束！");
+        }
+        return Result.ok(seckillWaitingRoom.join(voucherId, UserHolder.getUser().getId()));
+    }
+
+    @Override
+    public Result queryWaitingRoom(Long voucherId) {
+        //查询进度同样会推进放行进度（写入redis），先排除不是秒杀券的id
+        if (!seckillVoucherWindows.isSeckill(voucherId)) {
+            return Result.fail("秒杀券不存在！");
+        }
+        return Result.ok(seckillWaitingRoom.status(voucherId, UserHolder.getUser().getId()));
+    }
+
+    //seckill.lua的KEYS：库存、订单、分片数量、时间窗口、订单队列、订单位图、订单id、售罄标记
+    private List<String> seckillKeysOf(Long voucherId) {
+        return Arrays.asList(
+                seckillKeys.stock(voucherId),
+                seckillKeys.order(voucherId),
+                seckillKeys.stockShards(voucherId),
+                seckillKeys.voucher(voucherId),
+                seckillKeys.stream(voucherId),
+                seckillKeys.orderBitmap(voucherId),
+                seckillKeys.orderIds(voucherId),
+                seckillKeys.soldOut(voucherId));
+    }
+
+    //秒杀脚本返回值 2：重复下单 4：尚未开始 5：已经结束
+    private static String failMessage(int r) {
+        switch (r) {
+            case 4:
+                return "秒杀尚未开始！";
+            case 5:
+                return "秒杀已经结束！";
+            default:
+                return "不能重复下单";
+        }
+    }
+
     //@Override
     //public Result seckillVoucher(Long voucherId) {
     //    //获取用户id
@@ -287,25 +362,88 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     */
 
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //一人一单
-        Long userId = voucherOrder.getUserId();
-        //查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0) {//说明已经该用户已经对该优惠券下过单了
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        //一人一单：先写入订单，(user_id, voucher_id)唯一索引冲突时不插入
+        //只处理唯一索引冲突，其他错误（字段超长、非空约束等）照常抛出，不能当作重复下单
+        try {
+            save(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            //说明该用户已经对该优惠券下过单了（也可能是同一条消息重复投递），不扣减库存
             log.error("用户已经购买过一次!");
-            return;
+            return false;
         }
-        //库存充足，则扣减库存（操作秒杀券表）
+        //扣减库存（操作秒杀券表）
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock -1")//set stock = stock -1
                 //where voucher_id =? and stock>0
                 .gt("stock", 0).eq("voucher_id", voucherOrder.getVoucherId()).update();
         if (!success) {//操作失败
             log.error("秒杀券库存不足!");
-            return;
+            //回滚已经写入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //1.批内去重，同一用户对同一张券只保留一单
+        Map<String, VoucherOrder> orders = new LinkedHashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orders.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+        //2.一人一单，去掉数据库中已经存在的订单（消息重复投递时会出现）；
+        //  查询之后才写入的重复订单由唯一索引拒绝，整批回滚后由消费者逐条处理
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : orders.values()) {
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        query().select("user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list()
+                .forEach(exist -> {
+                    if (orders.remove(exist.getUserId() + ":" + exist.getVoucherId()) != null) {
+                        log.error("用户已经购买过一次!");
+                    }
+                });
+        //3.按秒杀券聚合扣减库存 update tb_seckill_voucher set stock = stock - k where voucher_id = ? and stock >= k
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = orders.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> toSave = new ArrayList<>(orders.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> list = entry.getValue();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + list.size())
+                    .ge("stock", list.size()).eq("voucher_id", voucherId).update();
+            if (!success) {
+                //库存不足以满足整批订单，锁定该行后按剩余库存扣减
+                list = list.subList(0, deductRemainingStock(voucherId, list.size()));
+            }
+            toSave.addAll(list);
+        }
+        //4.将订单一次性写入数据库 insert into tb_voucher_order (...) values (...), (...)
+        if (!toSave.isEmpty()) {
+            getBaseMapper().insertBatch(toSave);
+        }
+        return toSave;
+    }
+
+    //锁定秒杀券所在行，扣减至多want个库存，返回实际扣减的数量
+    private int deductRemainingStock(Long voucherId, int want) {
+        SeckillVoucher voucher = seckillVoucherService.query()
+                .eq("voucher_id", voucherId).last("FOR UPDATE").one();
+        int n = voucher == null ? 0 : Math.min(voucher.getStock(), want);
+        if (n > 0) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock - " + n).eq("voucher_id", voucherId).update();
+        }
+        if (n < want) {
+            log.error("秒杀券库存不足!");
         }
-        //将订单写入数据库（操作优惠券订单表）
-        save(voucherOrder);
+        return n;
     }
 }
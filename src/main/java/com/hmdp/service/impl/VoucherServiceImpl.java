@@ -7,14 +7,20 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillKeys;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * 服务实现类
@@ -31,12 +37,24 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillVoucherWindows seckillVoucherWindows;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    //秒杀库存的分片数量，大于1时库存平均拆分到多个key中
+    @Resource
+    private SeckillKeys seckillKeys;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息（缓存，秒杀券预热时会提前加载）
+        Voucher[] vouchers = cacheClient.queryWithPassThrough(CACHE_SHOP_VOUCHERS_KEY, shopId, Voucher[].class,
+                id -> getBaseMapper().queryVoucherOfShop(id).toArray(new Voucher[0]),
+                CACHE_SHOP_VOUCHERS_TTL, TimeUnit.MINUTES);
         // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(vouchers == null ? Collections.emptyList() : Arrays.asList(vouchers));
     }
 
     @Override
@@ -52,6 +70,28 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        if (seckillKeys.getStockShards() <= 1) {
+            stringRedisTemplate.opsForValue().set(seckillKeys.stock(voucher.getId()), voucher.getStock().toString());
+        } else {
+            saveStockShards(voucher.getId(), voucher.getStock());
+        }
+        //保存秒杀时间窗口到Redis中
+        seckillVoucherWindows.save(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime());
+        //删除店铺的优惠券列表缓存
+        cacheClient.evict(CACHE_SHOP_VOUCHERS_KEY + voucher.getShopId());
+    }
+
+    //将库存平均拆分到 seckill:stock:{p_0}:id:0 ~ seckill:stock:{p_N-1}:id:N-1（各分片位于各自的分区），余数分给前面的分片，最后写入分片数量
+    private void saveStockShards(Long voucherId, int stock) {
+        int stockShards = seckillKeys.getStockShards();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < stockShards; i++) {
+                int shardStock = stock / stockShards + (i < stock % stockShards ? 1 : 0);
+                conn.set(seckillKeys.stockShard(voucherId, i), String.valueOf(shardStock));
+            }
+            conn.set(seckillKeys.stockShards(voucherId), String.valueOf(stockShards));
+            return null;
+        });
     }
 }
@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 按缓存key前缀管理防缓存穿透的布隆过滤器（店铺、笔记、用户的id）
+ * <p>
+ * 启动时优先从redis加载位图，不存在时由一个节点从数据库重建；新增元素通过发布订阅同步到其他节点的JVM副本，
+ * 并定期与redis位图合并，防止错过消息；每天按rebuild-cron从数据库重建一次，清除已删除的id
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class BloomFilterManager {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    //缓存key前缀 -> 过滤器
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        //消息格式：add|keyPrefix|id 或者 reload|keyPrefix
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|", 3);
+            Filter filter = filters.get(parts[1]);
+            if (filter == null) {
+                return;
+            }
+            if ("add".equals(parts[0])) {
+                filter.bloomFilter.addLocal(parts[2]);
+            } else {
+                filter.bloomFilter.load(false);
+            }
+        }, new ChannelTopic(BLOOM_FILTER_CHANNEL));
+    }
+
+    /**
+     * 注册一个布隆过滤器，并加载或重建位图
+     *
+     * @param keyPrefix 对应的缓存key前缀
+     * @param idsAfter  查询数据库中大于指定id的所有id（传入0即查询全部）
+     */
+    public void register(String keyPrefix, LongFunction<List<Long>> idsAfter) {
+        if (!enabled) {
+            return;
+        }
+        Filter filter = new Filter(new RedisBloomFilter(BLOOM_FILTER_KEY + keyPrefix, fpp, stringRedisTemplate), idsAfter);
+        filters.put(keyPrefix, filter);
+        try {
+            if (!filter.bloomFilter.load(false)) {
+                rebuild(keyPrefix);
+            }
+        } catch (Exception e) {
+            //加载失败时过滤器保持不可用，mightContain总是返回true，不影响正常查询
+            log.error("加载布隆过滤器失败: {}", keyPrefix, e);
+        }
+    }
+
+    /**
+     * 判断id是否可能存在，没有对应的过滤器或者过滤器尚不可用时返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        return filter == null || filter.bloomFilter.mightContain(id);
+    }
+
+    /**
+     * 新增数据后调用，写入redis位图并通知其他节点
+     */
+    public void add(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null || !filter.bloomFilter.isReady()) {
+            return;
+        }
+        filter.bloomFilter.add(id);
+        stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANNEL, "add|" + keyPrefix + "|" + id);
+    }
+
+    /**
+     * 从数据库重建位图，同一时间只有一个节点执行
+     */
+    public void rebuild(String keyPrefix) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_BLOOM_FILTER_KEY + keyPrefix);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            List<Long> ids = filter.idsAfter.apply(0L);
+            long maxId = ids.isEmpty() ? 0L : Collections.max(ids);
+            filter.bloomFilter.rebuild(ids, expectedInsertions, fpp);
+            //重建期间新增的数据（id是自增的）
+            for (Long id : filter.idsAfter.apply(maxId)) {
+                filter.bloomFilter.add(id);
+            }
+            stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANNEL, "reload|" + keyPrefix);
+            log.info("重建布隆过滤器 {}，共{}个元素，耗时{}ms", keyPrefix, ids.size(), System.currentTimeMillis() - begin);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //定期与redis位图合并，补上错过的新增消息
+    @Scheduled(fixedDelayString = "${hmdp.bloom.sync-interval-ms:300000}")
+    public void sync() {
+        for (Filter filter : filters.values()) {
+            try {
+                filter.bloomFilter.load(true);
+            } catch (Exception e) {
+                log.error("同步布隆过滤器失败", e);
+            }
+        }
+    }
+
+    //定期从数据库重建，清除已经删除的id
+    @Scheduled(cron = "${hmdp.bloom.rebuild-cron:0 0 4 * * ?}")
+    public void rebuildAll() {
+        for (String keyPrefix : new ArrayList<>(filters.keySet())) {
+            try {
+                rebuild(keyPrefix);
+            } catch (Exception e) {
+                log.error("重建布隆过滤器失败: {}", keyPrefix, e);
+            }
+        }
+    }
+
+    private static class Filter {
+        private final RedisBloomFilter bloomFilter;
+        private final LongFunction<List<Long>> idsAfter;
+
+        private Filter(RedisBloomFilter bloomFilter, LongFunction<List<Long>> idsAfter) {
+            this.bloomFilter = bloomFilter;
+            this.idsAfter = idsAfter;
+        }
+    }
+}
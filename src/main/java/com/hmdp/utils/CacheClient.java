@@ -1,19 +1,36 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.IdUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -21,6 +38,16 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 李
  * @version 1.0
  * 封装redis工具类
+ * <p>
+ * 可选的两级缓存：开启hmdp.cache.local.enabled后，在redis之前增加一层有容量和存活时间上限的JVM本地缓存，
+ * 本地缓存保存的是反序列化之后的对象，通过set、setWithLogicalExpire写入或者通过evict删除key时会经由redis发布订阅通知其他节点删除本地缓存；
+ * 查询未命中后的回填和逻辑过期的重建只写入redis，不通知其他节点
+ * <p>
+ * 热点key自动升级：逻辑过期方式的查询会经过HotKeyDetector统计访问频率，redis中不存在的key不再直接返回null，
+ * 而是互斥加载后按热度写回——热点key以逻辑过期（不设置TTL）的方式写入redis并放入本地缓存，其他key以普通TTL的方式写入；
+ * 热点key冷却后给逻辑过期的key重新设置TTL，并在下一次重建时写回普通格式。两种格式的数据在读取时都能识别
+ * <p>
+ * 缓存值的编码由CacheCodec决定（默认二进制的smile），开启hmdp.cache.codec.migration后可以读取任意已注册编码器写入的数据
  */
 @Component
 @Slf4j
@@ -28,8 +55,121 @@ public class CacheClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private List<CacheCodec> codecs;
+
+    @Value("${hmdp.cache.codec.name:json}")
+    private String codecName;
+
+    @Value("${hmdp.cache.codec.migration:true}")
+    private boolean codecMigration;
+
+    //写入时使用的编码器
+    private CacheCodec codec;
+
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localMaximumSize;
+
+    @Value("${hmdp.cache.local.ttl-seconds:30}")
+    private long localTtlSeconds;
+
+    //本地缓存中代表"数据库中不存在"的空值
+    private static final Object NULL_VALUE = new Object();
+
+    //未获取互斥锁时，每次等待重建完成通知的最长时间
+    private static final long REBUILD_WAIT_MILLIS = 100;
+
+    //本地缓存（L1），未开启时为null
+    private Cache<String, Object> localCache;
+
+    //本节点的id，用于忽略自己发出的本地缓存失效通知
+    private final String nodeId = IdUtil.fastSimpleUUID();
+
+    //本JVM内正在重建的key -> 重建结果，同一个key的并发查询共享同一次重建
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> rebuildingKeys = new ConcurrentHashMap<>();
+
+    //正在等待其他节点重建完成的key -> 唤醒信号
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> rebuildSignals = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int rebuildThreads;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int rebuildQueueCapacity;
+
+    @Value("${hmdp.cache.rebuild.early-refresh-beta:1.0}")
+    private double earlyRefreshBeta;
+
+    //逻辑过期的重建线程池，有界队列，队列满时拒绝
+    private ThreadPoolExecutor rebuildExecutor;
+
+    //key前缀 -> 平均重建耗时（毫秒）
+    private final ConcurrentHashMap<String, AtomicLong> rebuildMillis = new ConcurrentHashMap<>();
+
+    private Counter rejectedRebuilds;
+
+    private Counter earlyRefreshes;
+
+    //以逻辑过期方式写入redis的热点key -> 降级之后设置的TTL（秒）
+    private final ConcurrentHashMap<String, Long> promotedKeys = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        codec = codecs.stream().filter(c -> c.name().equals(codecName)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编码器: " + codecName));
+        rebuildExecutor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(rebuildQueueCapacity),
+                ThreadUtil.newNamedThreadFactory("cache-rebuild-", true),
+                new ThreadPoolExecutor.AbortPolicy());
+        Gauge.builder("cache.rebuild.queue", rebuildExecutor, e -> e.getQueue().size()).register(meterRegistry);
+        rejectedRebuilds = Counter.builder("cache.rebuild.rejected").register(meterRegistry);
+        earlyRefreshes = Counter.builder("cache.rebuild.early").register(meterRegistry);
+        //订阅缓存重建完成频道，唤醒等待该key的线程
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> signal = rebuildSignals.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (signal != null) {
+                signal.complete(null);
+            }
+        }, new ChannelTopic(CACHE_REBUILT_CHANNEL));
+        hotKeyDetector.onDemote(this::demote);
+        //未开启本地缓存时，本地缓存只保存热点key
+        if (!localEnabled && !hotKeyDetector.isEnabled()) {
+            return;
+        }
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, localCache, "cacheClient.local");
+        //订阅缓存失效频道，收到key之后删除本地缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onInvalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdownNow();
+    }
+
     /**
-     * 将任意Java对象序列化为json，并存储在string类型的key中，并且可以设置TTL过期时间
+     * 将任意Java对象编码后存储在string类型的key中，并且可以设置TTL过期时间
      *
      * @param key   缓存的key值
      * @param value 缓存的value值
@@ -37,12 +177,12 @@ public class CacheClient {
      * @param unit  过期的时间单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue()
-                .set(key, JSONUtil.toJsonStr(value), time, unit);
+        write(key, value, time, unit);
+        publishInvalidate(key);
     }
 
     /**
-     * 将任意Java对象序列化为json，并存储在string类型的key中，
+     * 将任意Java对象编码后存储在string类型的key中，
      * 并且可以设置逻辑过期时间，用户处理缓存击穿问题（针对热点key）
      *
      * @param key   缓存的key值
@@ -52,11 +192,34 @@ public class CacheClient {
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
         //设置逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
+        writeWithLogicalExpire(key, value, time, unit);
+        publishInvalidate(key);
+    }
+
+    //只写入redis并删除本节点的本地缓存，不通知其他节点：查询未命中后的回填和重建写入的是数据库中的当前数据，
+    //其他节点的本地缓存仍然有效（最多过期后重新读取），只有数据被修改时（set、evict）才需要通知
+    private void write(String key, Object value, Long time, TimeUnit unit) {
+        setRaw(key, codec.encode(newRedisData(value, null)), unit.toSeconds(time));
+        invalidateLocal(key);
+    }
+
+    private void writeWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
         //逻辑过期时间=当前时间+指定的时间
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        RedisData<Object> redisData = newRedisData(value, LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        setRaw(key, codec.encode(redisData), 0);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除缓存，并通过发布订阅通知所有节点删除本地缓存（数据被修改后调用）
+     *
+     * @param key 缓存的key值
+     */
+    public void evict(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+        promotedKeys.remove(key);
+        publishInvalidate(key);
     }
 
     /**
@@ -74,37 +237,190 @@ public class CacheClient {
      */
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
-        String key = keyPrefix + id;
-        //redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //判断json是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //存在，转为java对象并返回
-            return JSONUtil.toBean(json, type);
-        }
-        //判断是否为""，如果是，说明该key是为了解决缓存穿透设置的空值
-        if ("".equals(json)) {
-            //返回错误信息
+        //布隆过滤器判断id一定不存在时，直接返回，不再查询redis和数据库
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
             return null;
         }
+        String key = keyPrefix + id;
+        //先查询本地缓存，再查询redis
+        Object cached = getPassThrough(key, type);
+        if (cached != null) {
+            //命中缓存的对象，或者为了解决缓存穿透设置的空值
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
         //不存在，根据id查询数据库——使用函数式编程
         R r = dbFallback.apply(id);
         if (r == null) {//说明数据库中没有该数据
             //缓存空值，应对缓存穿透
             stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(key, NULL_VALUE);
             //返回错误信息
             return null;
         }
         //r存在，则将其写入redis
-        this.set(key, r, time, unit);
+        write(key, r, time, unit);
+        putLocal(key, r);
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR =
-            Executors.newFixedThreadPool(10);
+    /**
+     * 根据指定的key查询缓存，并反序列化为指定类型，利用互斥锁解决缓存击穿问题
+     * <p>
+     * 本JVM内同一个key的并发查询共享同一次重建（single-flight），跨节点由redis互斥锁保证只有一个节点查询数据库，
+     * 其他节点等待重建完成的发布订阅通知（或者最多等待一小段时间）后重新查询redis，不再休眠递归
+     *
+     * @param keyPrefix  查询的key值的前缀
+     * @param id         查询的key值的后缀
+     * @param type       要转换的Class类型
+     * @param dbFallback 传入的函数
+     * @param time       过期时间值
+     * @param unit       时间单位
+     * @param <R>        泛型
+     * @param <ID>       泛型
+     * @return 返回指定的类型对象
+     */
+    public <R, ID> R queryWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        //1.查询本地缓存和redis
+        Object value = getPassThrough(key, type);
+        if (value == null) {
+            //2.未命中，互斥加载
+            value = loadWithMutex(key, type, () -> dbFallback.apply(id), r -> write(key, r, time, unit));
+        }
+        return value == NULL_VALUE ? null : type.cast(value);
+    }
+
+    //同一个key只有第一个线程去重建，其他线程等待它的结果，返回对象或者NULL_VALUE
+    private <R> Object loadWithMutex(String key, Class<R> type, Supplier<R> dbFallback, Consumer<R> writer) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = rebuildingKeys.putIfAbsent(key, future);
+        if (inFlight != null) {
+            return awaitRebuild(inFlight, dbFallback);
+        }
+        try {
+            Object value = rebuildWithMutex(key, type, dbFallback, writer);
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            rebuildingKeys.remove(key, future);
+        }
+    }
+
+    //获取redis互斥锁后重建缓存，获取失败则等待持有锁的节点重建完成后重新查询redis
+    private <R> Object rebuildWithMutex(String key, Class<R> type, Supplier<R> dbFallback, Consumer<R> writer) {
+        String lockKey = LOCK_KEY_PREFIX + key;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        while (true) {
+            if (tryLock(lockKey)) {
+                try {
+                    //获取锁之后再次查询redis，其他节点可能刚刚重建完成
+                    Object cached = getPassThrough(key, type);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    R r = dbFallback.get();
+                    if (r == null) {
+                        //数据库中不存在，缓存空值，应对缓存穿透
+                        stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        putLocal(key, NULL_VALUE);
+                        return NULL_VALUE;
+                    }
+                    writer.accept(r);
+                    putLocal(key, r);
+                    return r;
+                } finally {
+                    unLock(lockKey);
+                    //通知其他节点上等待的线程
+                    stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+                }
+            }
+            //其他节点正在重建，等待通知或者超时后重新查询redis
+            awaitSignal(key, REBUILD_WAIT_MILLIS);
+            Object cached = getPassThrough(key, type);
+            if (cached != null) {
+                return cached;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                //等待超过锁的有效期，持有锁的节点可能已经宕机，直接查询数据库
+                R r = dbFallback.get();
+                return r == null ? NULL_VALUE : r;
+            }
+        }
+    }
+
+    //等待本JVM内其他线程的重建结果，超时后直接查询数据库
+    private <R> Object awaitRebuild(CompletableFuture<Object> inFlight, Supplier<R> dbFallback) {
+        try {
+            return inFlight.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            R r = dbFallback.get();
+            return r == null ? NULL_VALUE : r;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void awaitSignal(String key, long millis) {
+        CompletableFuture<Void> signal = rebuildSignals.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            signal.get(millis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            rebuildSignals.remove(key, signal);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            //信号不会异常完成
+        }
+    }
+
+    //依次查询本地缓存和redis，返回对象、空值NULL_VALUE，未命中时返回null
+    private <R> Object getPassThrough(String key, Class<R> type) {
+        Object local = getLocal(key);
+        if (local instanceof RedisData) {
+            //同一个key被逻辑过期的方式查询过，本地缓存中是RedisData：未过期时取出数据，已过期时重新查询redis
+            RedisData<?> localData = (RedisData<?>) local;
+            if (localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                return localData.getData() == null ? NULL_VALUE : localData.getData();
+            }
+        } else if (local != null) {
+            return local;
+        }
+        //redis查询缓存
+        byte[] raw = getRaw(key);
+        //判断是否存在
+        if (raw != null && raw.length > 0) {
+            //存在，转为java对象（也可能是被其他节点升级为逻辑过期格式的热点key）
+            Object r = decode(raw, type).getData();
+            if (r == null) {
+                r = NULL_VALUE;
+            }
+            putLocal(key, r);
+            return r;
+        }
+        //判断是否为""，如果是，说明该key是为了解决缓存穿透设置的空值
+        if (raw != null) {
+            putLocal(key, NULL_VALUE);
+            return NULL_VALUE;
+        }
+        return null;
+    }
 
     /**
      * 根据指定的key查询缓存，并反序列化为指定类型，需要利用逻辑过期解决缓存击穿问题（针对热点key）
+     * <p>
+     * 不再需要提前预热：redis未命中时互斥加载，热点key以逻辑过期的方式写入，其他key以time为TTL写入
+     *
      * @param keyPrefix  查询的key值的前缀
      * @param id         查询的key值的后缀
      * @param type       要转换的Class类型
@@ -118,44 +434,345 @@ public class CacheClient {
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type,
                                             Function<ID, R> dbFallback, Long time,
                                             TimeUnit unit) {
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //这里不再考虑缓存穿透问题，因为key永不过期
-        if (StrUtil.isBlank(json)) {
-            //如果未命中,说明不是热点key,直接返回null
+        hotKeyDetector.record(key);
+        //先查询本地缓存，本地缓存中的数据已经逻辑过期时，再去redis中查询最新的数据
+        Object local = getLocal(key);
+        if (local instanceof RedisData) {
+            RedisData<?> localData = (RedisData<?>) local;
+            if (localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                refreshEarlyIfNeeded(keyPrefix, id, localData.getExpireTime(), () -> dbFallback.apply(id), time, unit);
+                return type.cast(localData.getData());
+            }
+        } else if (local != null) {
+            //普通格式的数据或者空值
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        byte[] raw = getRaw(key);
+        if (raw == null) {
+            //如果未命中，互斥加载并按热度写回redis
+            Object value = loadWithMutex(key, type, () -> dbFallback.apply(id), r -> writeByHotness(key, r, time, unit));
+            return value == NULL_VALUE ? null : type.cast(value);
+        }
+        if (raw.length == 0) {
+            //缓存穿透的空值
+            putLocal(key, NULL_VALUE);
             return null;
         }
         //如果命中
-        //先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //一次解码为指定类型的对象
+        RedisData<R> redisData = decode(raw, type);
+        R r = redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
+        if (expireTime == null) {
+            //普通格式（带TTL），已经成为热点key时直接升级为逻辑过期格式，不需要查询数据库
+            if (r != null && hotKeyDetector.isHot(key)) {
+                promote(key, r, time, unit);
+            }
+            putLocal(key, r == null ? NULL_VALUE : r);
+            return r;
+        }
         //判断是否逻辑过期
         if (expireTime.isAfter(LocalDateTime.now())) {
-            //未过期，直接返回信息
+            //未过期，放入本地缓存（保存反序列化之后的对象）并直接返回信息
+            putLocal(key, newRedisData(r, expireTime));
+            refreshEarlyIfNeeded(keyPrefix, id, expireTime, () -> dbFallback.apply(id), time, unit);
             return r;
         }
-        //过期，获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
+        //过期，获取互斥锁，开启独立线程重建缓存
+        rebuildWithLogicalExpire(keyPrefix, id, () -> dbFallback.apply(id), time, unit);
+        //直接返回旧数据
+        return r;
+    }
+
+    /**
+     * 批量查询缓存，先查本地缓存，再用一次MGET查询redis，未命中的id用一次批量查询从数据库加载，
+     * 并通过pipeline写回redis，数据库中不存在的id同样缓存空值，应对缓存穿透
+     *
+     * @param keyPrefix  查询的key值的前缀
+     * @param ids        查询的key值的后缀集合
+     * @param type       要转换的Class类型
+     * @param dbFallback 根据id集合批量查询数据库的函数，返回id到对象的映射
+     * @param time       过期时间值
+     * @param unit       时间单位
+     * @param <R>        泛型
+     * @param <ID>       泛型
+     * @return 按照ids的顺序返回存在的对象
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                      Function<Collection<ID>, Map<ID, R>> dbFallback, Long time,
+                                      TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbFallback, time, unit, false);
+    }
+
+    /**
+     * 批量查询以逻辑过期方式存储的缓存（与queryWithLogicalExpire共用同一批key），
+     * 已逻辑过期的数据先返回旧值并异步重建，redis中没有的数据从数据库加载后以逻辑过期的方式写回
+     *
+     * @param keyPrefix  查询的key值的前缀
+     * @param ids        查询的key值的后缀集合
+     * @param type       要转换的Class类型
+     * @param dbFallback 根据id集合批量查询数据库的函数，返回id到对象的映射
+     * @param time       逻辑过期时间值
+     * @param unit       时间单位
+     * @param <R>        泛型
+     * @param <ID>       泛型
+     * @return 按照ids的顺序返回存在的对象
+     */
+    public <R, ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                       Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                                       Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbFallback, time, unit, true);
+    }
+
+    private <R, ID> List<R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                       Function<Collection<ID>, Map<ID, R>> dbFallback, Long time,
+                                       TimeUnit unit, boolean logicalExpire) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        LocalDateTime now = LocalDateTime.now();
+        //id -> 对象或者NULL_VALUE
+        Map<ID, Object> found = new HashMap<>(ids.size());
+        //1.先查询本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            //布隆过滤器判断一定不存在的id直接跳过
+            if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+                continue;
+            }
+            if (logicalExpire) {
+                hotKeyDetector.record(keyPrefix + id);
+            }
+            Object local = getLocal(keyPrefix + id);
+            if (local instanceof RedisData) {
+                RedisData<?> localData = (RedisData<?>) local;
+                if (localData.getExpireTime().isAfter(now)) {
+                    found.put(id, localData.getData() == null ? NULL_VALUE : localData.getData());
+                    if (logicalExpire) {
+                        refreshEarlyIfNeeded(keyPrefix, id, localData.getExpireTime(),
+                                () -> dbFallback.apply(Collections.singletonList(id)).get(id), time, unit);
+                    }
+                    continue;
+                }
+            } else if (local != null) {
+                found.put(id, local);
+                continue;
+            }
+            remoteIds.add(id);
+        }
+        //2.本地缓存未命中的，用一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+            List<byte[]> raws = multiGetRaw(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                String key = keys.get(i);
+                byte[] raw = raws == null ? null : raws.get(i);
+                if (raw == null) {
+                    missIds.add(id);
+                } else if (raw.length == 0) {
+                    //缓存穿透的空值
+                    found.put(id, NULL_VALUE);
+                    putLocal(key, NULL_VALUE);
+                } else if (logicalExpire) {
+                    RedisData<R> redisData = decode(raw, type);
+                    R r = redisData.getData();
+                    found.put(id, r == null ? NULL_VALUE : r);
+                    if (redisData.getExpireTime() == null) {
+                        //普通格式（带TTL）的key
+                        putLocal(key, r == null ? NULL_VALUE : r);
+                    } else if (redisData.getExpireTime().isAfter(now)) {
+                        putLocal(key, newRedisData(r, redisData.getExpireTime()));
+                        refreshEarlyIfNeeded(keyPrefix, id, redisData.getExpireTime(),
+                                () -> dbFallback.apply(Collections.singletonList(id)).get(id), time, unit);
+                    } else {
+                        //逻辑过期，返回旧数据并异步重建
+                        rebuildWithLogicalExpire(keyPrefix, id,
+                                () -> dbFallback.apply(Collections.singletonList(id)).get(id), time, unit);
+                    }
+                } else {
+                    R r = decode(raw, type).getData();
+                    found.put(id, r == null ? NULL_VALUE : r);
+                    putLocal(key, r == null ? NULL_VALUE : r);
+                }
+            }
+        }
+        //3.redis未命中的，用一次批量查询从数据库加载，并通过pipeline写回redis
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            LocalDateTime expireTime = now.plusSeconds(unit.toSeconds(time));
+            Map<String, Object> locals = new HashMap<>(missIds.size());
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    String key = keyPrefix + id;
+                    byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                    R r = loaded == null ? null : loaded.get(id);
+                    if (r == null) {
+                        //数据库中不存在，缓存空值
+                        connection.setEx(rawKey, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), new byte[0]);
+                        found.put(id, NULL_VALUE);
+                        locals.put(key, NULL_VALUE);
+                    } else if (logicalExpire && shouldPromote(key)) {
+                        RedisData<R> redisData = newRedisData(r, expireTime);
+                        connection.set(rawKey, codec.encode(redisData));
+                        promotedKeys.put(key, unit.toSeconds(time));
+                        found.put(id, r);
+                        locals.put(key, redisData);
+                    } else {
+                        connection.setEx(rawKey, unit.toSeconds(time), codec.encode(newRedisData(r, null)));
+                        found.put(id, r);
+                        locals.put(key, r);
+                    }
+                }
+                return null;
+            });
+            locals.forEach(this::putLocal);
+        }
+        //4.按照输入的顺序返回，不存在的id跳过
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            Object value = found.get(id);
+            if (value != null && value != NULL_VALUE) {
+                result.add(type.cast(value));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 提前刷新（XFetch）：还未逻辑过期时，以 -重建耗时 * beta * ln(随机数) >= 剩余时间 的概率提前重建，
+     * 越接近过期、重建越慢、读取越频繁，越可能在过期之前就完成重建，避免过期瞬间大量请求拿到旧数据
+     */
+    private <R, ID> void refreshEarlyIfNeeded(String keyPrefix, ID id, LocalDateTime expireTime,
+                                              Supplier<R> dbFallback, Long time, TimeUnit unit) {
+        if (earlyRefreshBeta <= 0) {
+            return;
+        }
+        AtomicLong delta = rebuildMillis.get(keyPrefix);
+        if (delta == null) {
+            //还没有重建过，不知道重建耗时
+            return;
+        }
+        long remaining = Duration.between(LocalDateTime.now(), expireTime).toMillis();
+        double gap = -delta.get() * earlyRefreshBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        if (gap >= remaining) {
+            earlyRefreshes.increment();
+            rebuildWithLogicalExpire(keyPrefix, id, dbFallback, time, unit);
+        }
+    }
+
+    //获取互斥锁成功后，交给重建线程池以逻辑过期的方式重建缓存
+    private <R, ID> void rebuildWithLogicalExpire(String keyPrefix, ID id, Supplier<R> dbFallback,
+                                                  Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        //每个key有自己的锁 lock:cache:shop:1
+        String lockKey = LOCK_KEY_PREFIX + key;
         boolean isLock = tryLock(lockKey);
-        if (isLock) {//成功获取互斥锁
-            //开启独立线程
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        if (!isLock) {
+            //其他线程正在重建
+            return;
+        }
+        try {
+            rebuildExecutor.execute(() -> {
+                long begin = System.nanoTime();
                 try {
                     //重建缓存
                     //先查询数据库
-                    R apply = dbFallback.apply(id);
-                    //再存入reids缓存
-                    this.setWithLogicalExpire(key, apply, time, unit);
+                    R apply = dbFallback.get();
+                    //再存入reids缓存，已经冷却的key写回普通格式
+                    writeByHotness(key, apply, time, unit);
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("重建缓存失败: {}", key, e);
+                } finally {
+                    //无论是否成功都释放互斥锁
+                    unLock(lockKey);
+                    recordRebuild(keyPrefix, System.nanoTime() - begin);
                 }
-                //释放互斥锁
-                unLock(lockKey);
             });
+        } catch (RejectedExecutionException e) {
+            //队列已满，放弃本次重建，继续返回旧数据，等下次请求再尝试
+            unLock(lockKey);
+            rejectedRebuilds.increment();
+            log.warn("缓存重建队列已满，放弃重建: {}", key);
         }
-        //如果未获取互斥锁，直接返回旧数据
-        return r;
+    }
+
+    //记录重建耗时：按key前缀统计耗时分布，并维护用于提前刷新的平均耗时（指数加权）
+    private void recordRebuild(String keyPrefix, long nanos) {
+        Timer.builder("cache.rebuild.latency").tag("prefix", keyPrefix)
+                .register(meterRegistry).record(nanos, TimeUnit.NANOSECONDS);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        AtomicLong delta = rebuildMillis.computeIfAbsent(keyPrefix, k -> new AtomicLong(millis));
+        delta.updateAndGet(old -> (old * 7 + millis) / 8);
+    }
+
+    //热点key（或者未开启热点探测时的所有key）以逻辑过期的方式写入，其他key以time为TTL写入
+    private <R> void writeByHotness(String key, R r, Long time, TimeUnit unit) {
+        if (r == null) {
+            //数据库中不存在，缓存空值，应对缓存穿透
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            promotedKeys.remove(key);
+            invalidateLocal(key);
+        } else if (shouldPromote(key)) {
+            promote(key, r, time, unit);
+        } else {
+            write(key, r, time, unit);
+            promotedKeys.remove(key);
+        }
+    }
+
+    private boolean shouldPromote(String key) {
+        return !hotKeyDetector.isEnabled() || hotKeyDetector.isHot(key);
+    }
+
+    private void promote(String key, Object value, Long time, TimeUnit unit) {
+        writeWithLogicalExpire(key, value, time, unit);
+        promotedKeys.put(key, unit.toSeconds(time));
+    }
+
+    //热点key冷却：删除本地缓存，并给逻辑过期的key设置TTL，过期之后以普通格式重新加载
+    private void demote(String key) {
+        invalidateLocal(key);
+        Long ttl = promotedKeys.remove(key);
+        if (ttl != null) {
+            stringRedisTemplate.expire(key, ttl, TimeUnit.SECONDS);
+        }
+    }
+
+    //解码redis中的数据：迁移模式下按数据的格式选择编码器，兼容切换编码器之前写入的数据
+    private <R> RedisData<R> decode(byte[] raw, Class<R> type) {
+        CacheCodec c = codecMigration ? CacheCodec.detect(raw, codec, codecs) : codec;
+        return c.decode(raw, type);
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private List<byte[]> multiGetRaw(List<String> keys) {
+        byte[][] rawKeys = keys.stream().map(k -> k.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+    }
+
+    //ttlSeconds小于等于0时不设置过期时间
+    private void setRaw(String key, byte[] value, long ttlSeconds) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> ttlSeconds > 0
+                ? connection.setEx(rawKey, ttlSeconds, value)
+                : connection.set(rawKey, value));
+    }
+
+    private static <T> RedisData<T> newRedisData(T data, LocalDateTime expireTime) {
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setData(data);
+        redisData.setExpireTime(expireTime);
+        return redisData;
     }
 
     private boolean tryLock(String key) {
@@ -167,4 +784,38 @@ public class CacheClient {
     private void unLock(String key) {
         stringRedisTemplate.delete(key);
     }
+
+    private Object getLocal(String key) {
+        return localCache == null ? null : localCache.getIfPresent(key);
+    }
+
+    private void putLocal(String key, Object value) {
+        //未开启本地缓存时只保存热点key
+        if (localCache != null && (localEnabled || hotKeyDetector.isHot(key))) {
+            localCache.put(key, value);
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+    }
+
+    //通知其他节点删除本地缓存，消息格式为 节点id|key
+    private void publishInvalidate(String key) {
+        if (localCache != null) {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, nodeId + "|" + key);
+        }
+    }
+
+    //本节点发出的通知忽略（写入时已经删除了本地缓存，之后可能已经放入了新值），不带节点id的消息直接作为key
+    private void onInvalidate(String body) {
+        int i = body.indexOf('|');
+        if (i < 0) {
+            localCache.invalidate(body);
+        } else if (!nodeId.equals(body.substring(0, i))) {
+            localCache.invalidate(body.substring(i + 1));
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * CacheClient写入redis的缓存值的编码器
+ * <p>
+ * 实现类注册为Spring bean即可，通过hmdp.cache.codec.name选择写入时使用的编码器；
+ * 开启hmdp.cache.codec.migration后，读取时根据accepts判断数据是由哪个编码器写入的，从而兼容切换前写入的数据
+ *
+ * @author 李
+ * @version 1.0
+ */
+public interface CacheCodec {
+    /**
+     * @return 编码器名称
+     */
+    String name();
+
+    /**
+     * 判断数据是否是该编码器写入的格式
+     */
+    boolean accepts(byte[] raw);
+
+    /**
+     * 编码，expireTime为null时表示普通的带TTL的缓存
+     */
+    byte[] encode(RedisData<?> redisData);
+
+    /**
+     * 一次解码为指定类型的RedisData
+     */
+    <T> RedisData<T> decode(byte[] raw, Class<T> type);
+
+    /**
+     * 按数据的格式选择编码器：当前编码器不能识别时，使用第一个能识别的已注册编码器，都不能识别时仍使用当前编码器
+     */
+    static CacheCodec detect(byte[] raw, CacheCodec codec, List<CacheCodec> codecs) {
+        if (codec.accepts(raw)) {
+            return codec;
+        }
+        for (CacheCodec c : codecs) {
+            if (c.accepts(raw)) {
+                return c;
+            }
+        }
+        return codec;
+    }
+}
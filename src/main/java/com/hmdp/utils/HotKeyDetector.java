@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * 热点key探测器
+ * <p>
+ * 按sample-rate对访问进行采样，用Count-Min Sketch（depth行 x width列的计数器，保守更新）估算每个key的访问次数，
+ * 每隔decay-interval-ms所有计数器减半，因此估算值近似于最近几个周期内的访问频率。
+ * 估算的访问次数达到threshold时成为热点key，衰减后低于threshold的一半时降级，并通知注册的监听器
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+
+    private static final int WIDTH = 1 << 14;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.hot-key.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.cache.hot-key.sample-rate:4}")
+    private int sampleRate;
+
+    @Value("${hmdp.cache.hot-key.threshold:200}")
+    private int threshold;
+
+    @Value("${hmdp.cache.hot-key.max-hot-keys:1000}")
+    private int maxHotKeys;
+
+    //DEPTH行计数器，第i行第j列的下标为 i * WIDTH + j
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+
+    //当前的热点key
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+
+    //热点key降级时的回调
+    private volatile Consumer<String> demoteListener = key -> {
+    };
+
+    private Counter promoted;
+
+    private Counter demoted;
+
+    @PostConstruct
+    private void init() {
+        sampleRate = Math.max(1, sampleRate);
+        promoted = Counter.builder("cache.hotkey.promoted").register(meterRegistry);
+        demoted = Counter.builder("cache.hotkey.demoted").register(meterRegistry);
+        Gauge.builder("cache.hotkey.count", hotKeys, Set::size).register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @param key 缓存的key值
+     * @return 记录之后该key是否为热点key
+     */
+    public boolean record(String key) {
+        if (!enabled) {
+            return false;
+        }
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            //未被采样
+            return hotKeys.contains(key);
+        }
+        long estimate = (long) increment(key) * sampleRate;
+        if (estimate >= threshold && !hotKeys.contains(key) && hotKeys.size() < maxHotKeys && hotKeys.add(key)) {
+            promoted.increment();
+            log.debug("发现热点key: {}", key);
+        }
+        return hotKeys.contains(key);
+    }
+
+    public boolean isHot(String key) {
+        return enabled && hotKeys.contains(key);
+    }
+
+    /**
+     * 注册热点key降级时的回调
+     */
+    public void onDemote(Consumer<String> listener) {
+        this.demoteListener = listener;
+    }
+
+    //所有计数器减半，并降级访问频率已经下降的热点key
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.decay-interval-ms:10000}")
+    public void decay() {
+        if (!enabled) {
+            return;
+        }
+        //原子地减半，避免覆盖衰减期间并发的计数
+        for (int i = 0; i < counters.length(); i++) {
+            if (counters.get(i) > 0) {
+                counters.getAndUpdate(i, count -> count >> 1);
+            }
+        }
+        for (String key : hotKeys) {
+            if ((long) estimate(key) * sampleRate < threshold / 2 && hotKeys.remove(key)) {
+                demoted.increment();
+                log.debug("热点key降级: {}", key);
+                try {
+                    demoteListener.accept(key);
+                } catch (Exception e) {
+                    log.error("热点key降级失败: {}", key, e);
+                }
+            }
+        }
+    }
+
+    //保守更新：只增加等于最小值的计数器，返回增加后的估算值
+    private int increment(String key) {
+        int[] indexes = indexes(key);
+        int min = Integer.MAX_VALUE;
+        for (int index : indexes) {
+            min = Math.min(min, counters.get(index));
+        }
+        for (int index : indexes) {
+            counters.compareAndSet(index, min, min + 1);
+        }
+        return min + 1;
+    }
+
+    private int estimate(String key) {
+        int min = Integer.MAX_VALUE;
+        for (int index : indexes(key)) {
+            min = Math.min(min, counters.get(index));
+        }
+        return min;
+    }
+
+    //double hashing：第i行的列 = h1 + i * h2
+    private static int[] indexes(String key) {
+        long hash = MurmurHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int[] indexes = new int[DEPTH];
+        for (int i = 0; i < DEPTH; i++) {
+            indexes[i] = i * WIDTH + ((h1 + i * h2) & (WIDTH - 1));
+        }
+        return indexes;
+    }
+}
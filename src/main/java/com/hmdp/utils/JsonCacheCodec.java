@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 原来的hutool json格式：普通缓存直接保存对象的json，逻辑过期的缓存保存RedisData的json
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public boolean accepts(byte[] raw) {
+        return raw.length > 0 && (raw[0] == '{' || raw[0] == '[');
+    }
+
+    @Override
+    public byte[] encode(RedisData<?> redisData) {
+        Object value = redisData.getExpireTime() == null ? redisData.getData() : redisData;
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> RedisData<T> decode(byte[] raw, Class<T> type) {
+        if (raw[0] == '[') {
+            //普通格式的数组
+            RedisData<T> redisData = new RedisData<>();
+            redisData.setData(toArray(JSONUtil.parseArray(new String(raw, StandardCharsets.UTF_8)), type));
+            return redisData;
+        }
+        JSONObject obj = JSONUtil.parseObj(new String(raw, StandardCharsets.UTF_8));
+        RedisData<T> redisData = new RedisData<>();
+        if (obj.containsKey("expireTime") && obj.size() <= 2) {
+            //逻辑过期格式，需要先转为RedisData，再把data转为指定类型
+            redisData.setExpireTime(obj.toBean(RedisData.class).getExpireTime());
+            Object data = obj.get("data");
+            if (data instanceof JSONArray) {
+                redisData.setData(toArray((JSONArray) data, type));
+            } else {
+                redisData.setData(data == null ? null : ((JSONObject) data).toBean(type));
+            }
+        } else {
+            redisData.setData(obj.toBean(type));
+        }
+        return redisData;
+    }
+
+    private static <T> T toArray(JSONArray array, Class<T> type) {
+        List<?> list = array.toList(type.getComponentType());
+        return type.cast(list.toArray((Object[]) Array.newInstance(type.getComponentType(), list.size())));
+    }
+}
@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 以redis位图为主、JVM内保存一份副本的布隆过滤器
+ * <p>
+ * 查询只访问JVM副本，新增时同时写入副本和redis位图（SETBIT），
+ * 位数m由预计元素数量和误判率计算得出，哈希函数个数k只取决于误判率，因此各节点从redis位图的长度就能还原出相同的参数
+ *
+ * @author 李
+ * @version 1.0
+ */
+public class RedisBloomFilter {
+    private final String key;
+    private final int hashCount;
+    private final StringRedisTemplate stringRedisTemplate;
+    //JVM副本，未从redis加载或者重建之前为null
+    private volatile Bits bits;
+
+    public RedisBloomFilter(String key, double fpp, StringRedisTemplate stringRedisTemplate) {
+        this.key = key;
+        this.hashCount = Math.max(1, (int) Math.round(-Math.log(fpp) / Math.log(2)));
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * @return 副本是否已经可用，不可用时mightContain总是返回true
+     */
+    public boolean isReady() {
+        return bits != null;
+    }
+
+    /**
+     * 判断元素是否可能存在，返回false时元素一定不存在
+     */
+    public boolean mightContain(Object value) {
+        Bits current = bits;
+        if (current == null) {
+            return true;
+        }
+        for (long index : indexes(value, current.size)) {
+            if (!current.get(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增元素，同时写入JVM副本和redis位图
+     */
+    public void add(Object value) {
+        Bits current = bits;
+        if (current == null) {
+            return;
+        }
+        long[] indexes = indexes(value, current.size);
+        addLocal(value);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long index : indexes) {
+                conn.setBit(key, index, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只写入JVM副本（其他节点新增元素后通过发布订阅通知过来时使用）
+     */
+    public void addLocal(Object value) {
+        Bits current = bits;
+        if (current == null) {
+            return;
+        }
+        for (long index : indexes(value, current.size)) {
+            current.set(index);
+        }
+    }
+
+    /**
+     * 从redis加载位图到JVM副本
+     *
+     * @param merge true：与现有副本按位或合并（布隆过滤器只增不减，定期同步时使用）；false：直接替换
+     * @return redis中是否存在该位图
+     */
+    public boolean load(boolean merge) {
+        byte[] raw = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+        if (raw == null || raw.length == 0) {
+            return false;
+        }
+        Bits loaded = Bits.fromBytes(raw);
+        Bits current = bits;
+        if (merge && current != null && current.size == loaded.size) {
+            current.or(loaded);
+        } else {
+            bits = loaded;
+        }
+        return true;
+    }
+
+    /**
+     * 根据全部元素重建位图：先写入临时key，再RENAME替换，最后替换JVM副本
+     *
+     * @param values              全部元素
+     * @param expectedInsertions  预计的元素数量
+     * @param fpp                 误判率
+     */
+    public void rebuild(Collection<?> values, long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, values.size() * 2L);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        Bits rebuilt = new Bits((m + 63) / 64 * 64);
+        for (Object value : values) {
+            for (long index : indexes(value, rebuilt.size)) {
+                rebuilt.set(index);
+            }
+        }
+        byte[] tmpKey = (key + ":tmp").getBytes(StandardCharsets.UTF_8);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] raw = rebuilt.toBytes();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, raw);
+            connection.rename(tmpKey, rawKey);
+            return null;
+        });
+        bits = rebuilt;
+    }
+
+    //double hashing：第i个位置 = h1 + i * h2
+    private long[] indexes(Object value, long size) {
+        long[] hash = MurmurHash.hash128(value.toString());
+        long[] indexes = new long[hashCount];
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            indexes[i] = (combined & Long.MAX_VALUE) % size;
+            combined += hash[1];
+        }
+        return indexes;
+    }
+
+    //无锁的位数组，位的顺序与redis位图一致（第0位是第一个字节的最高位）
+    private static class Bits {
+        private final long size;
+        private final AtomicLongArray words;
+
+        private Bits(long size) {
+            this.size = size;
+            this.words = new AtomicLongArray((int) (size >>> 6));
+        }
+
+        private static Bits fromBytes(byte[] raw) {
+            Bits bits = new Bits(raw.length / 8 * 64L);
+            for (int i = 0; i < bits.words.length(); i++) {
+                long word = 0;
+                for (int j = 0; j < 8; j++) {
+                    word = (word << 8) | (raw[i * 8 + j] & 0xFF);
+                }
+                bits.words.set(i, word);
+            }
+            return bits;
+        }
+
+        private byte[] toBytes() {
+            byte[] raw = new byte[words.length() * 8];
+            for (int i = 0; i < words.length(); i++) {
+                long word = words.get(i);
+                for (int j = 7; j >= 0; j--) {
+                    raw[i * 8 + j] = (byte) word;
+                    word >>>= 8;
+                }
+            }
+            return raw;
+        }
+
+        private boolean get(long index) {
+            return (words.get((int) (index >>> 6)) & mask(index)) != 0;
+        }
+
+        private void set(long index) {
+            int i = (int) (index >>> 6);
+            long mask = mask(index);
+            long word;
+            do {
+                word = words.get(i);
+                if ((word & mask) != 0) {
+                    return;
+                }
+            } while (!words.compareAndSet(i, word, word | mask));
+        }
+
+        private void or(Bits other) {
+            for (int i = 0; i < words.length(); i++) {
+                long bitsToAdd = other.words.get(i);
+                long word;
+                do {
+                    word = words.get(i);
+                } while (!words.compareAndSet(i, word, word | bitsToAdd));
+            }
+        }
+
+        //第0位是最高位，与redis的SETBIT偏移量一致
+        private static long mask(long index) {
+            return 1L << (63 - (index & 63));
+        }
+    }
+}
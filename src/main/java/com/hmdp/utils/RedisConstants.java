@@ -13,12 +13,54 @@ public class RedisConstants {
 
     public static final String CACHE_SHOP_TYPE = "cache:shopType:";
 
+    public static final Long CACHE_SHOP_VOUCHERS_TTL = 10L;
+    public static final String CACHE_SHOP_VOUCHERS_KEY = "cache:shop:vouchers:";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_CHANNEL = "bloom:sync";
+    public static final String LOCK_BLOOM_FILTER_KEY = "lock:bloom:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_KEY_PREFIX = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_STOCK_SHARDS_SUFFIX = ":shards";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:soldout:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_EXPIRE_KEY = "seckill:lease:expire:";
+    public static final String SECKILL_LEASE_VOUCHERS_KEY = "seckill:lease:vouchers";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_DLQ_STREAM = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String LOCK_SECKILL_PREHEAT_KEY = "lock:seckill:preheat";
+    public static final String SECKILL_RECONCILE_KEY = "seckill:reconcile:";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_QUEUE_KEY = "seckill:queue:";
+    public static final String SECKILL_COMPACT_KEY = "seckill:compact:";
+    public static final String LOCK_SECKILL_COMPACT_KEY = "lock:seckill:compact";
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+
+    //redis集群的哈希标签，{}中的内容相同的key位于同一个槽
+    public static String hashTag(Object tag) {
+        return "{" + tag + "}";
+    }
 }
@@ -9,9 +9,9 @@ import java.time.LocalDateTime;
  * @version 1.0
  */
 @Data
-public class RedisData {
-    //逻辑过期时间
+public class RedisData<T> {
+    //逻辑过期时间，为null时表示普通的带TTL的缓存
     private LocalDateTime expireTime;
     //存入redis的数据
-    private Object data;
+    private T data;
 }
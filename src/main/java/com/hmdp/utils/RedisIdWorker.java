@@ -1,14 +1,29 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.Clock;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * 全局唯一id生成器
+ * <p>
+ * 不再每次都INCR，而是用INCRBY一次向redis租用step个序列号（号段），在JVM内无锁地分配，
+ * 当前号段剩余不足20%时异步预取下一个号段，号段用完时直接切换，id的格式仍为 时间戳<<32 | 序列号
+ *
  * @author 李
  * @version 1.0
  */
@@ -20,9 +35,25 @@ public class RedisIdWorker {
     //序列号的位数
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    //每个号段包含的序列号数量
+    @Value("${hmdp.id-worker.step:1000}")
+    private long step;
+
+    //预取号段的线程
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            ThreadUtil.newNamedThreadFactory("id-segment-", true));
+
+    //业务前缀 -> 号段缓冲
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    //生成时间戳和按天切换号段使用的时钟
+    private Clock clock = Clock.systemDefaultZone();
+
     //public static void main(String[] args) {
     //    //开始时间
     //    LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
@@ -33,7 +64,7 @@ public class RedisIdWorker {
 
     public long nextId(String keyPrefix) {
         //1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime now = LocalDateTime.now(clock);
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         //开始时间到当前时间的 时间戳
         long timeStamp = nowSecond - BEGIN_TIMESTAMP;
@@ -45,14 +76,94 @@ public class RedisIdWorker {
          * 这种方法不仅可以防止订单号使用完（redis的的自增最多可以有2^64位，我们采取其中32位作计数器），
          * 还可以根据不同的日期，统计该天的订单数量
          */
-        //2.1获取当前的日期（精确到天）
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2做自增长
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(now.toLocalDate());
 
         //3.拼接并返回
         //将时间戳左移32位，空出来的右边32位使用count填充，共64位
         return timeStamp << COUNT_BITS | count;
     }
-}
 
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    //向redis租用一个号段 INCRBY icr:keyPrefix:yyyy:MM:dd step
+    private Segment lease(String keyPrefix, LocalDate date) {
+        Long max = stringRedisTemplate.opsForValue()
+                .increment("icr:" + keyPrefix + ":" + date.format(DATE_FORMATTER), step);
+        return new Segment(date, max - step + 1, max);
+    }
+
+    //一个号段：[next, max]，只属于某一天
+    private static class Segment {
+        private final LocalDate date;
+        private final AtomicLong next;
+        private final long max;
+
+        private Segment(LocalDate date, long min, long max) {
+            this.date = date;
+            this.next = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+
+    //某个业务前缀的当前号段和预取中的下一个号段
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> prefetch;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(LocalDate today) {
+            while (true) {
+                Segment segment = current;
+                if (segment == null || !segment.date.equals(today)) {
+                    //首次使用或者跨天，同步租用当天的号段
+                    switchSegment(segment, today);
+                    continue;
+                }
+                //无锁分配序列号
+                long count = segment.next.getAndIncrement();
+                if (count <= segment.max) {
+                    //剩余不足20%时异步预取下一个号段（只会触发一次）
+                    if (segment.max - count == step / 5) {
+                        prefetch(today);
+                    }
+                    return count;
+                }
+                //当前号段已用完，切换到下一个号段
+                switchSegment(segment, today);
+            }
+        }
+
+        private synchronized void prefetch(LocalDate date) {
+            if (prefetch == null) {
+                prefetch = CompletableFuture.supplyAsync(() -> lease(keyPrefix, date), prefetchExecutor);
+            }
+        }
+
+        private synchronized void switchSegment(Segment expired, LocalDate today) {
+            if (current != expired) {
+                //其他线程已经完成了切换
+                return;
+            }
+            Segment segment = null;
+            if (prefetch != null) {
+                try {
+                    segment = prefetch.join();
+                } catch (Exception e) {
+                    //预取失败，下面同步租用
+                }
+                prefetch = null;
+            }
+            if (segment == null || !segment.date.equals(today)) {
+                segment = lease(keyPrefix, today);
+            }
+            current = segment;
+        }
+    }
+}
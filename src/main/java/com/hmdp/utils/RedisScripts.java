@@ -0,0 +1,198 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.io.file.FileNameUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lua脚本注册表
+ * <p>
+ * 启动时读取classpath根目录下所有的.lua文件（脚本名称即文件名），计算SHA1，并用SCRIPT LOAD加载到redis
+ * （集群模式下lettuce会把SCRIPT LOAD发送到所有主节点），之后定期重新加载，使故障转移或者新增节点后脚本缓存很快恢复。
+ * 调用时只发送EVALSHA，遇到NOSCRIPT时改用EVAL发送脚本内容（同时缓存到该节点）。
+ * 每个脚本的调用次数和耗时记录在redis.script计时器中，NOSCRIPT的次数记录在redis.script.noscript中
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class RedisScripts {
+    public static final String SECKILL = "seckill";
+
+    public static final String SECKILL_SHARD = "seckill_shard";
+
+    public static final String SECKILL_LEASED = "seckill_leased";
+
+    public static final String SECKILL_LEASE = "seckill_lease";
+
+    public static final String SECKILL_LEASE_RETURN = "seckill_lease_return";
+
+    public static final String SECKILL_PREHEAT = "seckill_preheat";
+
+    public static final String SECKILL_STOCK_RETURN = "seckill_stock_return";
+
+    public static final String UNLOCK = "unlock";
+
+    public static final String RATE_LIMIT = "rate_limit";
+
+    public static final String QUEUE_JOIN = "queue_join";
+
+    public static final String QUEUE_ADMIT = "queue_admit";
+
+    public static final String SECKILL_COMPACT = "seckill_compact";
+
+    @javax.annotation.Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @javax.annotation.Resource
+    private MeterRegistry meterRegistry;
+
+    //脚本名称 -> 脚本
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() throws IOException {
+        //1.读取所有脚本
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources("classpath*:*.lua")) {
+            String name = FileNameUtil.mainName(resource.getFilename());
+            try (InputStream in = resource.getInputStream()) {
+                scripts.putIfAbsent(name, new Script(name, IoUtil.read(in, StandardCharsets.UTF_8)));
+            }
+        }
+        log.info("加载lua脚本: {}", scripts.keySet());
+        //2.预先加载到redis，失败时（redis尚未就绪）由定期加载或者第一次调用时的EVAL补上
+        loadAll();
+    }
+
+    /**
+     * SCRIPT LOAD所有脚本，脚本已经存在时没有影响
+     */
+    @Scheduled(initialDelayString = "${hmdp.redis.script.reload-interval-ms:30000}",
+            fixedDelayString = "${hmdp.redis.script.reload-interval-ms:30000}")
+    public void loadAll() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                for (Script script : scripts.values()) {
+                    connection.scriptingCommands().scriptLoad(script.body);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("加载lua脚本失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * EVALSHA执行返回整数的脚本，脚本不在redis缓存中时改用EVAL
+     *
+     * @param name 脚本名称（文件名，不含.lua）
+     */
+    public Long execute(String name, List<String> keys, String... args) {
+        Script script = get(name);
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keys.size() + i] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        long start = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute((RedisCallback<Long>) connection -> {
+                try {
+                    return connection.scriptingCommands()
+                            .evalSha(script.sha, ReturnType.INTEGER, keys.size(), keysAndArgs);
+                } catch (RuntimeException e) {
+                    if (!isNoScript(e)) {
+                        throw e;
+                    }
+                    //脚本缓存丢失（重启、故障转移、SCRIPT FLUSH），EVAL同时会把脚本缓存到该节点
+                    script.noScript.increment();
+                    return connection.scriptingCommands()
+                            .eval(script.body, ReturnType.INTEGER, keys.size(), keysAndArgs);
+                }
+            });
+        } finally {
+            script.timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 在pipeline中EVALSHA，结果在pipeline结束时返回。
+     * pipeline中无法就地重试，出现NOSCRIPT时（见{@link #isNoScript}）调用方应当先{@link #loadAll()}再重新执行整个pipeline
+     */
+    public void evalSha(StringRedisConnection connection, String name, List<String> keys, String... args) {
+        String[] keysAndArgs = new String[keys.size() + args.length];
+        keys.toArray(keysAndArgs);
+        System.arraycopy(args, 0, keysAndArgs, keys.size(), args.length);
+        Script script = get(name);
+        script.pipelined.increment();
+        connection.evalSha(script.sha, ReturnType.INTEGER, keys.size(), keysAndArgs);
+    }
+
+    /**
+     * 异常是否由NOSCRIPT引起
+     */
+    public static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Script get(String name) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本不存在: " + name);
+        }
+        return script;
+    }
+
+    //一个lua脚本及其指标
+    private class Script {
+        private final byte[] body;
+        private final String sha;
+        private final Timer timer;
+        private final Counter noScript;
+        private final Counter pipelined;
+
+        private Script(String name, String body) {
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+            this.sha = DigestUtil.sha1Hex(this.body);
+            this.timer = Timer.builder("redis.script")
+                    .tag("script", name)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+            this.noScript = Counter.builder("redis.script.noscript")
+                    .tag("script", name)
+                    .register(meterRegistry);
+            this.pipelined = Counter.builder("redis.script.pipelined")
+                    .tag("script", name)
+                    .register(meterRegistry);
+        }
+    }
+}
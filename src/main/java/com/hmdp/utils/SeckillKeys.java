@@ -0,0 +1,194 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀相关的redis key
+ * <p>
+ * 秒杀券按id分到partitions个分区，每个分区对应一个订单队列stream.orders:{p}，
+ * 该分区所有秒杀券的库存、订单、售罄标记、时间窗口、租约等key都带有相同的哈希标签{p}，例如seckill:stock:{p}:voucherId，
+ * 这样秒杀脚本用到的key（包括发送消息的队列）在redis集群中总是位于同一个槽，脚本可以声明全部KEYS原子执行，
+ * 不同分区的秒杀券和订单队列分散到不同的节点上。
+ * <p>
+ * 分片库存的第i个分片使用分区(id + i) % partitions的哈希标签，例如seckill:stock:{p1}:id:1，
+ * 每个分片有自己的订单集合（防止重复下单）、订单位图和订单队列，秒杀脚本只访问一个分片，同一秒杀券的分片分散到不同的节点上。
+ * 第0个分片的订单集合、订单位图、压缩进度和订单队列就是不分片时的key，售罄标记、时间窗口等整个秒杀券的key仍然只有一份（分区id % partitions）。
+ * 分区数量和库存分片数量决定了key的名称，秒杀进行中不能修改
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Component
+public class SeckillKeys {
+    @Value("${hmdp.seckill.stream.partitions:1}")
+    private int partitions;
+
+    @Value("${hmdp.seckill.stock.shards:1}")
+    private int stockShards;
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public int getStockShards() {
+        return stockShards;
+    }
+
+    public int partition(Long voucherId) {
+        return (int) Math.floorMod(voucherId, (long) partitions);
+    }
+
+    //所有分区的订单队列
+    public List<String> streams() {
+        List<String> streams = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            streams.add(stream(i));
+        }
+        return streams;
+    }
+
+    public String stream(int partition) {
+        return SECKILL_ORDER_STREAM + ":" + hashTag(partition);
+    }
+
+    public String stream(Long voucherId) {
+        return stream(partition(voucherId));
+    }
+
+    //第shard个库存分片所在的分区
+    public int partition(Long voucherId, int shard) {
+        return (int) Math.floorMod(voucherId + shard, (long) partitions);
+    }
+
+    //第shard个库存分片的下单消息发送到该分片所在分区的订单队列
+    public String stream(Long voucherId, int shard) {
+        return stream(partition(voucherId, shard));
+    }
+
+    public String stock(Long voucherId) {
+        return key(SECKILL_STOCK_KEY, voucherId);
+    }
+
+    public String stockShards(Long voucherId) {
+        return stock(voucherId) + SECKILL_STOCK_SHARDS_SUFFIX;
+    }
+
+    public String stockShard(Long voucherId, int shard) {
+        return shardKey(SECKILL_STOCK_KEY, voucherId, shard);
+    }
+
+    //按配置的分片数量列出所有库存分片，不分片时为空
+    public List<String> stockShardKeys(Long voucherId) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; stockShards > 1 && i < stockShards; i++) {
+            keys.add(stockShard(voucherId, i));
+        }
+        return keys;
+    }
+
+    public String order(Long voucherId) {
+        return key(SECKILL_ORDER_KEY, voucherId);
+    }
+
+    //第shard个库存分片的订单集合，第0个分片就是order(voucherId)
+    public String order(Long voucherId, int shard) {
+        return shard == 0 ? order(voucherId) : shardKey(SECKILL_ORDER_KEY, voucherId, shard);
+    }
+
+    //下单用户 -> 订单id，秒杀脚本与订单集合同时写入，对账重新发送丢失的订单时使用原来的订单id，订单集合压缩时删除
+    public String orderIds(Long voucherId) {
+        return order(voucherId) + ":ids";
+    }
+
+    public String orderIds(Long voucherId, int shard) {
+        return order(voucherId, shard) + ":ids";
+    }
+
+    //秒杀结束后由订单集合压缩而成的位图，偏移量为用户id
+    public String orderBitmap(Long voucherId) {
+        return order(voucherId) + ":bitmap";
+    }
+
+    public String orderBitmap(Long voucherId, int shard) {
+        return order(voucherId, shard) + ":bitmap";
+    }
+
+    //订单集合压缩的进度
+    public String compact(Long voucherId) {
+        return key(SECKILL_COMPACT_KEY, voucherId);
+    }
+
+    public String compact(Long voucherId, int shard) {
+        return shard == 0 ? compact(voucherId) : shardKey(SECKILL_COMPACT_KEY, voucherId, shard);
+    }
+
+    //对账时增量统计的数据库订单数和水位线
+    public String reconcile(Long voucherId) {
+        return key(SECKILL_RECONCILE_KEY, voucherId);
+    }
+
+    public String soldOut(Long voucherId) {
+        return key(SECKILL_SOLD_OUT_KEY, voucherId);
+    }
+
+    public String voucher(Long voucherId) {
+        return key(SECKILL_VOUCHER_KEY, voucherId);
+    }
+
+    public String lease(Long voucherId) {
+        return key(SECKILL_LEASE_KEY, voucherId);
+    }
+
+    public String leaseExpire(Long voucherId) {
+        return key(SECKILL_LEASE_EXPIRE_KEY, voucherId);
+    }
+
+    //持有租约的秒杀券，每个分区一个集合
+    public String leaseVouchers(int partition) {
+        return SECKILL_LEASE_VOUCHERS_KEY + ":" + hashTag(partition);
+    }
+
+    public String leaseVouchers(Long voucherId) {
+        return leaseVouchers(partition(voucherId));
+    }
+
+    //秒杀券的全局限流令牌桶
+    public String rateLimit(Long voucherId) {
+        return key(SECKILL_LIMIT_KEY, voucherId);
+    }
+
+    public String rateLimitUser(Long voucherId, Long userId) {
+        return rateLimit(voucherId) + ":user:" + userId;
+    }
+
+    public String rateLimitIp(Long voucherId, String ip) {
+        return rateLimit(voucherId) + ":ip:" + ip;
+    }
+
+    //排队的用户，score为排队号码
+    public String queue(Long voucherId) {
+        return key(SECKILL_QUEUE_KEY, voucherId);
+    }
+
+    public String queueSeq(Long voucherId) {
+        return queue(voucherId) + ":seq";
+    }
+
+    public String queueAdmit(Long voucherId) {
+        return queue(voucherId) + ":admit";
+    }
+
+    private String key(String prefix, Long voucherId) {
+        return prefix + hashTag(partition(voucherId)) + ":" + voucherId;
+    }
+
+    private String shardKey(String prefix, Long voucherId, int shard) {
+        return prefix + hashTag(partition(voucherId, shard)) + ":" + voucherId + ":" + shard;
+    }
+}
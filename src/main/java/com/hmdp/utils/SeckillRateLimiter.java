@@ -0,0 +1,185 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.SeckillRateLimitProperties;
+import com.hmdp.config.SeckillRateLimitProperties.Bucket;
+import com.hmdp.config.SeckillRateLimitProperties.Limits;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀接口的限流
+ * <p>
+ * 分两步：请求到达后先用本节点内存中每个秒杀券的令牌桶预过滤（不访问redis，超出的请求直接返回429，不占用后续的redis、数据库资源），
+ * 登录校验之后再用rate_limit.lua在redis中原子地检查该秒杀券的全局令牌桶、该用户的令牌桶和该ip的令牌桶，三者都有令牌时才放行。
+ * 这些桶的key带有秒杀券的哈希标签，一次脚本调用即可完成。redis异常时放行，由本地预过滤兜底
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+    private static final String[] STAGES = {"voucher", "user", "ip"};
+
+    @Resource
+    private SeckillRateLimitProperties properties;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //秒杀券id -> 本地令牌桶
+    private final Cache<Long, LocalBucket> localBuckets = Caffeine.newBuilder()
+            .expireAfterAccess(10, TimeUnit.MINUTES).build();
+
+    //本地、全局、用户、ip各级拒绝的次数
+    private Counter localRejected;
+
+    private Counter[] rejected;
+
+    @PostConstruct
+    private void init() {
+        localRejected = rejectedCounter("local");
+        rejected = new Counter[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            rejected[i] = rejectedCounter(STAGES[i]);
+        }
+    }
+
+    private Counter rejectedCounter(String stage) {
+        return Counter.builder("seckill.ratelimit.rejected").tag("stage", stage).register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    public String getIpHeader() {
+        return properties.getIpHeader();
+    }
+
+    /**
+     * 本地预过滤
+     *
+     * @return 是否放行
+     */
+    public boolean tryAcquireLocal(Long voucherId) {
+        Bucket limit = limitsOf(voucherId).getLocal();
+        if (limit == null || limit.getRate() <= 0) {
+            return true;
+        }
+        //配置变化后重新创建
+        LocalBucket bucket = localBuckets.asMap().compute(voucherId, (id, old) ->
+                old != null && old.rate == limit.getRate() && old.capacity == limit.capacity()
+                        ? old : new LocalBucket(limit.getRate(), limit.capacity(), System.nanoTime()));
+        if (bucket.tryAcquire(System.nanoTime())) {
+            return true;
+        }
+        localRejected.increment();
+        return false;
+    }
+
+    /**
+     * 全局、用户、ip限流，userId、ip为空时不检查对应的限制
+     *
+     * @return 是否放行
+     */
+    public boolean tryAcquire(Long voucherId, Long userId, String ip) {
+        Limits limits = limitsOf(voucherId);
+        List<String> keys = new ArrayList<>(3);
+        List<String> args = new ArrayList<>(7);
+        List<Counter> counters = new ArrayList<>(3);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        addBucket(limits.getVoucher(), seckillKeys.rateLimit(voucherId), 0, keys, args, counters);
+        if (userId != null) {
+            addBucket(limits.getUser(), seckillKeys.rateLimitUser(voucherId, userId), 1, keys, args, counters);
+        }
+        if (ip != null) {
+            addBucket(limits.getIp(), seckillKeys.rateLimitIp(voucherId, ip), 2, keys, args, counters);
+        }
+        if (keys.isEmpty()) {
+            return true;
+        }
+        try {
+            //返回0表示放行，否则是令牌不足的桶的序号
+            Long r = redisScripts.execute(RedisScripts.RATE_LIMIT, keys, args.toArray(new String[0]));
+            if (r == null || r == 0) {
+                return true;
+            }
+            counters.get(r.intValue() - 1).increment();
+            return false;
+        } catch (Exception e) {
+            log.warn("秒杀限流脚本执行失败，放行: {}", e.getMessage());
+            return true;
+        }
+    }
+
+    private void addBucket(Bucket limit, String key, int stage,
+                           List<String> keys, List<String> args, List<Counter> counters) {
+        if (limit == null || limit.getRate() <= 0) {
+            return;
+        }
+        keys.add(key);
+        args.add(String.valueOf(limit.getRate()));
+        args.add(String.valueOf(limit.capacity()));
+        counters.add(rejected[stage]);
+    }
+
+    //秒杀券单独配置的限制覆盖默认值
+    private Limits limitsOf(Long voucherId) {
+        Limits defaults = properties.getDefaults();
+        Limits limits = properties.getVouchers().get(voucherId);
+        if (limits == null) {
+            return defaults;
+        }
+        Limits merged = new Limits();
+        merged.setLocal(limits.getLocal() != null ? limits.getLocal() : defaults.getLocal());
+        merged.setVoucher(limits.getVoucher() != null ? limits.getVoucher() : defaults.getVoucher());
+        merged.setUser(limits.getUser() != null ? limits.getUser() : defaults.getUser());
+        merged.setIp(limits.getIp() != null ? limits.getIp() : defaults.getIp());
+        return merged;
+    }
+
+    //本地令牌桶，时间由调用方传入（System.nanoTime()）
+    static class LocalBucket {
+        private final double rate;
+        private final int capacity;
+        private double tokens;
+        private long last;
+
+        LocalBucket(double rate, int capacity, long now) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.last = now;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            //now在加锁之前读取，可能早于其他线程记录的last
+            if (now > last) {
+                tokens = Math.min(capacity, tokens + (now - last) * rate / TimeUnit.SECONDS.toNanos(1));
+                last = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀券的本地售罄标记
+ * <p>
+ * 某个节点的秒杀脚本返回库存不足后，标记该优惠券已售罄并通过发布订阅通知所有节点，
+ * 之后的请求在本地直接拒绝，不再生成订单id、不再访问redis。
+ * 补充库存时（预热重新写入库存、归还租约、对账归还库存）调用clear清除所有节点的标记；标记最多保留recheck-seconds，过期后重新由秒杀脚本判断，
+ * 这样即使库存是在其他地方（例如直接修改redis）补充的，也能在这段时间之后恢复售卖
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Component
+public class SeckillSoldOutFlags {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.sold-out.recheck-seconds:10}")
+    private long recheckSeconds;
+
+    //已售罄的优惠券id
+    private Cache<Long, Boolean> soldOut;
+
+    private Counter rejected;
+
+    @PostConstruct
+    private void init() {
+        soldOut = Caffeine.newBuilder().expireAfterWrite(recheckSeconds, TimeUnit.SECONDS).build();
+        rejected = Counter.builder("seckill.soldout.rejected").register(meterRegistry);
+        //消息格式：soldout|voucherId 或者 clear|voucherId
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|", 2);
+            Long voucherId = Long.valueOf(parts[1]);
+            if ("soldout".equals(parts[0])) {
+                soldOut.put(voucherId, Boolean.TRUE);
+            } else {
+                soldOut.invalidate(voucherId);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券是否已售罄，已售罄时记录一次本地拒绝
+     */
+    public boolean isSoldOut(Long voucherId) {
+        if (soldOut.getIfPresent(voucherId) == null) {
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    /**
+     * 秒杀脚本返回库存不足后调用，通知所有节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.getIfPresent(voucherId) != null) {
+            //其他线程已经标记并通知过了
+            return;
+        }
+        soldOut.put(voucherId, Boolean.TRUE);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "soldout|" + voucherId);
+    }
+
+    /**
+     * 只在本节点标记售罄（租约模式下本节点租不到库存时，其他节点可能仍有租用的库存，不能通知它们）
+     */
+    public void markSoldOutLocally(Long voucherId) {
+        soldOut.put(voucherId, Boolean.TRUE);
+    }
+
+    /**
+     * 补充库存后调用，清除所有节点的售罄标记
+     */
+    public void clear(Long voucherId) {
+        soldOut.invalidate(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "clear|" + voucherId);
+    }
+}
@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 秒杀库存租约
+ * <p>
+ * 每个节点一次从seckill:stock:{id}中租用chunk个库存到本地的原子计数器，下单时先在本地扣减，
+ * redis中只做一人一单校验、扣减该节点的租约余量并发送消息（seckill_leased.lua）。
+ * 租约余量记录在seckill:lease:{p}:id中，过期时间记录在seckill:lease:expire:{p}:id中，节点定期续租；
+ * 节点关闭时归还自己未使用的库存，宕机节点的租约过期后由其他节点回收。租约模式不支持分片库存
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Component
+public class SeckillStockLeases {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+
+    //每次租用的库存数量
+    @Value("${hmdp.seckill.lease.chunk:50}")
+    private int chunk;
+
+    //租约的有效期，续租间隔应当明显小于有效期
+    @Value("${hmdp.seckill.lease.ttl-seconds:30}")
+    private long ttlSeconds;
+
+    @Value("${server.port:8081}")
+    private int port;
+
+    private String nodeId;
+
+    //优惠券id -> 本节点剩余的租用库存
+    private final ConcurrentHashMap<Long, AtomicInteger> leases = new ConcurrentHashMap<>();
+
+    private Counter leased;
+
+    private Counter returned;
+
+    @PostConstruct
+    private void init() {
+        //分片库存的各个分片位于不同的槽，租用和归还无法在一个脚本中完成
+        if (enabled && seckillKeys.getStockShards() > 1) {
+            throw new IllegalStateException("hmdp.seckill.lease.enabled不能与分片库存（hmdp.seckill.stock.shards > 1）同时开启");
+        }
+        nodeId = NetUtil.getLocalHostName() + ":" + port;
+        leased = Counter.builder("seckill.lease.leased").register(meterRegistry);
+        returned = Counter.builder("seckill.lease.returned").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 从本节点租用的库存中扣减一个，不足时向redis租用下一批
+     *
+     * @return 是否扣减成功，false表示redis中也已经没有可以租用的库存
+     */
+    public boolean tryAcquire(Long voucherId) {
+        AtomicInteger remaining = leases.computeIfAbsent(voucherId, id -> new AtomicInteger());
+        if (take(remaining)) {
+            return true;
+        }
+        //同一个优惠券只有一个线程去租用，其他线程等待后直接使用它租到的库存
+        synchronized (remaining) {
+            if (take(remaining)) {
+                return true;
+            }
+            //KEYS：库存、分片数量、租约、租约过期时间、持有租约的秒杀券集合、售罄标记
+            Long taken = redisScripts.execute(
+                    RedisScripts.SECKILL_LEASE,
+                    Arrays.asList(
+                            seckillKeys.stock(voucherId),
+                            seckillKeys.stockShards(voucherId),
+                            seckillKeys.lease(voucherId),
+                            seckillKeys.leaseExpire(voucherId),
+                            seckillKeys.leaseVouchers(voucherId),
+                            seckillKeys.soldOut(voucherId)),
+                    voucherId.toString(),
+                    nodeId,
+                    String.valueOf(chunk),
+                    String.valueOf(expireAt())
+            );
+            if (taken == null || taken <= 0) {
+                return false;
+            }
+            leased.increment(taken);
+            //留下一个给当前请求
+            remaining.addAndGet(taken.intValue() - 1);
+            return true;
+        }
+    }
+
+    /**
+     * 下单失败（重复下单）时，把本地扣减的库存还回去
+     */
+    public void release(Long voucherId) {
+        AtomicInteger remaining = leases.get(voucherId);
+        if (remaining != null) {
+            remaining.incrementAndGet();
+        }
+    }
+
+    /**
+     * redis中的租约已经被回收（例如节点长时间停顿导致租约过期），丢弃本地剩余的库存
+     */
+    public void invalidate(Long voucherId) {
+        AtomicInteger remaining = leases.get(voucherId);
+        if (remaining != null) {
+            remaining.set(0);
+        }
+    }
+
+    //续租本节点仍有剩余库存的租约，并回收所有节点已经过期的租约
+    @Scheduled(fixedDelayString = "${hmdp.seckill.lease.renew-interval-ms:10000}")
+    public void renewAndReclaim() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            String expireAt = String.valueOf(expireAt());
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                leases.forEach((voucherId, remaining) -> {
+                    if (remaining.get() > 0) {
+                        conn.hSet(seckillKeys.leaseExpire(voucherId), nodeId, expireAt);
+                    }
+                });
+                return null;
+            });
+            for (int i = 0; i < seckillKeys.getPartitions(); i++) {
+                Set<String> voucherIds = stringRedisTemplate.opsForSet().members(seckillKeys.leaseVouchers(i));
+                if (voucherIds == null) {
+                    continue;
+                }
+                for (String voucherId : voucherIds) {
+                    returnLeases(Long.valueOf(voucherId), "");
+                }
+            }
+        } catch (Exception e) {
+            log.error("续租秒杀库存失败", e);
+        }
+    }
+
+    //节点关闭时归还本节点未使用的库存
+    @PreDestroy
+    private void destroy() {
+        for (Map.Entry<Long, AtomicInteger> entry : leases.entrySet()) {
+            entry.getValue().set(0);
+            try {
+                returnLeases(entry.getKey(), nodeId);
+            } catch (Exception e) {
+                log.error("归还秒杀库存失败: {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    private void returnLeases(Long voucherId, String node) {
+        //KEYS：库存、分片数量、租约、租约过期时间、售罄标记、持有租约的秒杀券集合
+        Long amount = redisScripts.execute(
+                RedisScripts.SECKILL_LEASE_RETURN,
+                Arrays.asList(
+                        seckillKeys.stock(voucherId),
+                        seckillKeys.stockShards(voucherId),
+                        seckillKeys.lease(voucherId),
+                        seckillKeys.leaseExpire(voucherId),
+                        seckillKeys.soldOut(voucherId),
+                        seckillKeys.leaseVouchers(voucherId)),
+                voucherId.toString(),
+                String.valueOf(System.currentTimeMillis()),
+                node
+        );
+        if (amount != null && amount > 0) {
+            returned.increment(amount);
+            log.info("归还秒杀库存 voucherId={} amount={}", voucherId, amount);
+            //库存恢复，清除各节点的售罄标记
+            seckillSoldOutFlags.clear(voucherId);
+        }
+    }
+
+    private long expireAt() {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
+
+    private static boolean take(AtomicInteger remaining) {
+        int current;
+        do {
+            current = remaining.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!remaining.compareAndSet(current, current - 1));
+        return true;
+    }
+}
@@ -1,9 +1,7 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -15,10 +13,12 @@ import java.util.concurrent.TimeUnit;
 public class SimpleRedisLock implements ILock {
     private String name;
     private StringRedisTemplate stringRedisTemplate;
+    private RedisScripts redisScripts;
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScripts redisScripts) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScripts = redisScripts;
     }
 
     private static final String KEY_PREFIX = "lock:";
@@ -34,24 +34,11 @@ public class SimpleRedisLock implements ILock {
         return Boolean.TRUE.equals(success);//防止空指针
     }
 
-    //泛型类型是返回型类型
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-
-    //使用静态常量和静态代码块，类一加载就初始化脚本
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-
     @Override
     public void unLock() {
-        //调用lua脚本
-        //public <T> T execute(RedisScript<T> script, List<K> keys, Object... args) {
-        //    return this.scriptExecutor.execute(script, keys, args);
-        //}
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,
+        //调用lua脚本（unlock.lua，由脚本注册表EVALSHA执行）
+        redisScripts.execute(
+                RedisScripts.UNLOCK,
                 Collections.singletonList(KEY_PREFIX + name),//锁的线程标识
                 ID_PREFIX + Thread.currentThread().getId());//当前线程标识
     }
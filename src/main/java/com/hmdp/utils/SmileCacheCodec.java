@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 二进制格式（jackson smile）：普通缓存和逻辑过期的缓存都保存为RedisData，
+ * 读取时按RedisData&lt;T&gt;一次解码为指定类型，不再先解析成JSONObject再转换
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Component
+public class SmileCacheCodec implements CacheCodec {
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    //数据类型 -> RedisData<数据类型>
+    private final ConcurrentHashMap<Class<?>, JavaType> types = new ConcurrentHashMap<>();
+
+    @Override
+    public String name() {
+        return "smile";
+    }
+
+    //smile数据以 :)\n 开头
+    @Override
+    public boolean accepts(byte[] raw) {
+        return raw.length >= 3 && raw[0] == ':' && raw[1] == ')' && raw[2] == '\n';
+    }
+
+    @Override
+    public byte[] encode(RedisData<?> redisData) {
+        try {
+            return mapper.writeValueAsBytes(redisData);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public <T> RedisData<T> decode(byte[] raw, Class<T> type) {
+        JavaType javaType = types.computeIfAbsent(type,
+                t -> mapper.getTypeFactory().constructParametricType(RedisData.class, t));
+        try {
+            return mapper.readValue(raw, javaType);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
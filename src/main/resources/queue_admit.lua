@@ -0,0 +1,50 @@
+-- 分批放行排队的用户：每隔interval毫秒放行batch个号码，返回已放行的最大号码，已售罄时返回-1
+-- 1.参数列表
+--    1.1 当前时间（毫秒）
+local now = tonumber(ARGV[1])
+--    1.2 每批放行的数量
+local batch = tonumber(ARGV[2])
+--    1.3 每批的间隔（毫秒）
+local interval = tonumber(ARGV[3])
+--    1.4 是否继续放行（秒杀尚未开始时为0）
+local advance = ARGV[4] == '1'
+--    1.5 排队数据的有效期（毫秒）
+local ttl = tonumber(ARGV[5])
+
+-- 2.数据key（都带有相同的哈希标签，位于同一个槽）
+--  2.1 号码计数器
+local seqKey = KEYS[1]
+--  2.2 放行进度{admitted: 已放行的最大号码, last: 上一批放行的时间}
+local admitKey = KEYS[2]
+--  2.3 售罄标记
+local soldOutKey = KEYS[3]
+
+-- 3.脚本业务
+if (redis.call('exists', soldOutKey) == 1) then
+    return -1
+end
+local state = redis.call('hmget', admitKey, 'admitted', 'last')
+local admitted = tonumber(state[1]) or 0
+local last = tonumber(state[2])
+if (not advance) then
+    return admitted
+end
+local target = admitted
+if (last == nil) then
+    -- 3.1 第一批立即放行
+    target = admitted + batch
+    last = now
+elseif (now - last >= interval) then
+    -- 3.2 按经过的批数放行
+    local n = math.floor((now - last) / interval)
+    target = admitted + n * batch
+    last = last + n * interval
+else
+    return admitted
+end
+-- 3.3 最多放行到已经发出的号码，避免无人排队时进度空转，之后排队的用户不再被分批
+local issued = tonumber(redis.call('get', seqKey)) or 0
+admitted = math.max(admitted, math.min(target, issued))
+redis.call('hmset', admitKey, 'admitted', admitted, 'last', last)
+redis.call('pexpire', admitKey, ttl)
+return admitted
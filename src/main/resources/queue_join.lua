@@ -0,0 +1,31 @@
+-- 排队领取号码：已经排队的用户返回原来的号码，已售罄时返回-1
+-- 1.参数列表
+--    1.1 用户id
+local userId = ARGV[1]
+--    1.2 排队数据的有效期（毫秒）
+local ttl = tonumber(ARGV[2])
+
+-- 2.数据key（都带有相同的哈希标签，位于同一个槽）
+--  2.1 号码计数器
+local seqKey = KEYS[1]
+--  2.2 排队的用户，score为号码
+local queueKey = KEYS[2]
+--  2.3 售罄标记
+local soldOutKey = KEYS[3]
+
+-- 3.脚本业务
+-- 3.1 已售罄，不再排队
+if (redis.call('exists', soldOutKey) == 1) then
+    return -1
+end
+-- 3.2 已经排队，返回原来的号码
+local ticket = redis.call('zscore', queueKey, userId)
+if (ticket) then
+    return tonumber(ticket)
+end
+-- 3.3 领取下一个号码
+ticket = redis.call('incr', seqKey)
+redis.call('zadd', queueKey, ticket, userId)
+redis.call('pexpire', seqKey, ttl)
+redis.call('pexpire', queueKey, ttl)
+return ticket
@@ -0,0 +1,42 @@
+-- 令牌桶限流：所有桶都有令牌时各取一个，否则一个也不取
+-- 1.参数列表
+--    1.1 当前时间（毫秒）
+local now = tonumber(ARGV[1])
+--    1.2 之后每个桶两个参数：每秒补充的令牌数、桶的容量
+
+-- 2.数据key：每个桶一个哈希{tokens: 剩余令牌数, ts: 上次补充的时间}（都带有相同的哈希标签，位于同一个槽）
+
+-- 3.脚本业务
+local tokens = {}
+local times = {}
+for i, key in ipairs(KEYS) do
+    local rate = tonumber(ARGV[i * 2])
+    local capacity = tonumber(ARGV[i * 2 + 1])
+    local bucket = redis.call('hmget', key, 'tokens', 'ts')
+    local left = tonumber(bucket[1])
+    local ts = tonumber(bucket[2])
+    if (left == nil or ts == nil) then
+        -- 3.1 新的桶是满的
+        left = capacity
+        ts = now
+    end
+    -- 3.2 按经过的时间补充令牌（各节点时钟不一致时不倒退）
+    if (now > ts) then
+        left = math.min(capacity, left + (now - ts) * rate / 1000)
+        ts = now
+    end
+    if (left < 1) then
+        -- 3.3 令牌不足，返回被拒绝的桶的序号
+        return i
+    end
+    tokens[i] = left - 1
+    times[i] = ts
+end
+-- 4.全部通过，扣减令牌，桶在补满之后过期
+for i, key in ipairs(KEYS) do
+    local rate = tonumber(ARGV[i * 2])
+    local capacity = tonumber(ARGV[i * 2 + 1])
+    redis.call('hmset', key, 'tokens', tokens[i], 'ts', times[i])
+    redis.call('pexpire', key, math.ceil(capacity * 1000 / rate) + 1000)
+end
+return 0
@@ -6,32 +6,66 @@ local userId = ARGV[2]
 --    1.3订单id
 local orderId = ARGV[3]
 
--- 2.数据key
+-- 2.数据key（都带有相同的哈希标签，位于同一个槽）
 --  2.1 库存key
-local stockKey = 'seckill:stock:' .. voucherId
+local stockKey = KEYS[1]
 --  2.2 订单key
-local orderKey = 'seckill:order:' .. voucherId
+local orderKey = KEYS[2]
+--  2.3 分片数量key（只有分片库存的优惠券才有，分片库存由seckill_shard.lua逐个分片扣减，调用方缓存的分片数量过期时返回6）
+local shardsKey = KEYS[3]
+--  2.4 时间窗口key
+local voucherKey = KEYS[4]
+--  2.5 订单队列
+local streamKey = KEYS[5]
+--  2.6 秒杀结束后压缩保存的订单位图（见SeckillOrderCompactor）
+local orderBitmapKey = KEYS[6]
+--  2.7 下单用户 -> 订单id
+local orderIdsKey = KEYS[7]
+--  2.8 售罄标记（排队脚本据此停止排队，补充库存时删除）
+local soldOutKey = KEYS[8]
 
 -- 3.脚本业务
+-- 3.0 秒杀时间窗口：hmget seckill:voucher:{p}:id begin end，哈希不存在时（旧的优惠券）不校验
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+if (window[1] and window[2]) then
+    -- 使用redis的时间，各节点的时钟偏差不影响判断（TIME之后还有写命令，低版本redis需要先开启命令复制）
+    if (redis.replicate_commands) then
+        redis.replicate_commands()
+    end
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(window[1])) then
+        -- 尚未开始，返回4
+        return 4
+    end
+    if (now > tonumber(window[2])) then
+        -- 已经结束，返回5
+        return 5
+    end
+end
+if (redis.call('exists', shardsKey) == 1) then
+    return 6
+end
 --  3.1判断库存是否充足 get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2库存不足,返回1
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    -- 3.2库存不足,写入售罄标记,返回1
+    redis.call('set', soldOutKey, '1')
     return 1
 end
--- 3.3库存充足，判断用户是否下过单(判断用户id是否在订单key对应的集合中)
+-- 3.3库存充足，判断用户是否下过单(判断用户id是否在订单key对应的集合中，或者在压缩后的位图中)
 -- sismember orderKey userId
-if (redis.call('sismember', orderKey, userId) == 1) then
+if (redis.call('sismember', orderKey, userId) == 1
+        or (tonumber(userId) < 4294967296 and redis.call('getbit', orderBitmapKey, userId) == 1)) then
     -- 3.4 若存在，说明是重复下单，返回2
     return 2
 end
--- 3.5 扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
+-- 3.5 扣库存 incrby stockKey -1，扣完最后一个库存时写入售罄标记
+if (redis.call('incrby', stockKey, -1) <= 0) then
+    redis.call('set', soldOutKey, '1')
+end
 -- 3.6 下单（保存用户） sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.7 发送消息到队列当中 xadd stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('hset', orderIdsKey, userId, orderId)
+-- 3.7 发送消息到队列当中 xadd stream.orders:{p} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 return 0
-
-
-
-
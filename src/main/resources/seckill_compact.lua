@@ -0,0 +1,73 @@
+-- 把秒杀结束后的订单集合分批转存为位图（偏移量为用户id），进度保存在redis中，中断后从上次的游标继续
+-- 返回-1：还有剩余；-2：放弃压缩（用户id超出位图范围，或者位图不比集合小），保留集合；>=0：完成，返回回收的字节数
+-- 1.参数列表
+--    1.1 每批SSCAN的数量
+local count = tonumber(ARGV[1])
+--    1.2 位图允许的最大用户id
+local maxUserId = tonumber(ARGV[2])
+--    1.3 进度的有效期（毫秒）
+local ttl = tonumber(ARGV[3])
+
+-- 2.数据key（都带有相同的哈希标签，位于同一个槽）
+--  2.1 订单集合
+local orderKey = KEYS[1]
+--  2.2 订单位图
+local bitmapKey = KEYS[2]
+--  2.3 压缩进度{cursor: SSCAN游标, status: done/skipped, before: 集合占用的字节数, after: 位图占用的字节数}
+local compactKey = KEYS[3]
+--  2.4 下单用户 -> 订单id，只在对账期间使用，完成或者放弃压缩时都删除
+local orderIdsKey = KEYS[4]
+
+-- SSCAN、MEMORY USAGE之后还有写命令，低版本redis需要先开启命令复制
+if (redis.replicate_commands) then
+    redis.replicate_commands()
+end
+
+local function skip(reason)
+    redis.call('del', bitmapKey, orderIdsKey)
+    redis.call('hmset', compactKey, 'status', 'skipped', 'reason', reason)
+    redis.call('pexpire', compactKey, ttl)
+    return -2
+end
+
+-- 3.脚本业务
+-- 3.1 没有订单集合（没有人下单）
+if (redis.call('exists', orderKey) == 0) then
+    redis.call('del', orderIdsKey)
+    redis.call('hmset', compactKey, 'status', 'done', 'before', 0, 'after', 0)
+    redis.call('pexpire', compactKey, ttl)
+    return 0
+end
+-- 3.2 从上次的游标继续转存一批
+local cursor = redis.call('hget', compactKey, 'cursor') or '0'
+local result = redis.call('sscan', orderKey, cursor, 'count', count)
+for _, member in ipairs(result[2]) do
+    local userId = tonumber(member)
+    if (userId == nil or userId < 0 or userId > maxUserId or userId ~= math.floor(userId)) then
+        return skip('user id out of range: ' .. member)
+    end
+    redis.call('setbit', bitmapKey, userId, 1)
+end
+cursor = result[1]
+redis.call('hset', compactKey, 'cursor', cursor)
+redis.call('pexpire', compactKey, ttl)
+if (cursor ~= '0') then
+    return -1
+end
+-- 3.3 遍历完毕，校验位图并比较占用的内存
+local size = redis.call('scard', orderKey)
+if (redis.call('bitcount', bitmapKey) < size) then
+    -- 遍历期间集合发生了变化，从头再来
+    redis.call('hdel', compactKey, 'cursor')
+    return -1
+end
+local before = redis.call('memory', 'usage', orderKey, 'samples', 0)
+local after = redis.call('memory', 'usage', bitmapKey)
+if (after >= before) then
+    return skip('bitmap is not smaller')
+end
+-- 3.4 删除集合，之后由位图判断是否重复下单
+redis.call('del', orderKey, orderIdsKey)
+redis.call('hmset', compactKey, 'status', 'done', 'size', size, 'before', before, 'after', after)
+redis.call('hdel', compactKey, 'cursor')
+return before - after
@@ -0,0 +1,47 @@
+-- 从秒杀库存中为一个节点租用至多chunk个库存
+-- 1.参数列表
+--    1.1 优惠券id
+local voucherId = ARGV[1]
+--    1.2 节点id
+local nodeId = ARGV[2]
+--    1.3 租用数量
+local chunk = tonumber(ARGV[3])
+--    1.4 租约的过期时间（毫秒时间戳）
+local expireAt = ARGV[4]
+
+-- 2.数据key（都带有相同的哈希标签，位于同一个槽）
+local stockKey = KEYS[1]
+local shardsKey = KEYS[2]
+local leaseKey = KEYS[3]
+local leaseExpireKey = KEYS[4]
+--  持有租约的秒杀券集合
+local leaseVouchersKey = KEYS[5]
+--  售罄标记（排队脚本据此停止排队，归还租约、补充库存时删除）
+local soldOutKey = KEYS[6]
+
+-- 3.脚本业务
+--  3.1 分片库存的各个分片位于不同的槽，不能在一个脚本中租用，启动时已经拒绝同时开启租约和分片
+if (redis.call('exists', shardsKey) == 1) then
+    return redis.error_reply('seckill:stock is sharded, leases are not supported')
+end
+local stock = tonumber(redis.call('get', stockKey)) or 0
+local taken = math.max(math.min(stock, chunk), 0)
+--  3.2 扣减库存，记录该节点持有的库存和租约的过期时间
+if (taken > 0) then
+    redis.call('incrby', stockKey, -taken)
+    redis.call('hincrby', leaseKey, nodeId, taken)
+    redis.call('hset', leaseExpireKey, nodeId, expireAt)
+    redis.call('sadd', leaseVouchersKey, voucherId)
+end
+--  3.3 库存和所有节点的租约都已经用完时写入售罄标记（租约归还后可能恢复，由归还脚本删除标记）
+if (stock - taken <= 0) then
+    local leases = redis.call('hgetall', leaseKey)
+    local leased = 0
+    for i = 2, #leases, 2 do
+        leased = leased + math.max(tonumber(leases[i]), 0)
+    end
+    if (leased <= 0) then
+        redis.call('set', soldOutKey, '1')
+    end
+end
+return taken
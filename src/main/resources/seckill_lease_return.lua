@@ -0,0 +1,44 @@
+-- 归还租约中未使用的库存：指定节点的租约（节点关闭时），以及所有已经过期的租约（节点宕机时）
+-- 1.参数列表
+--    1.1 优惠券id
+local voucherId = ARGV[1]
+--    1.2 当前时间（毫秒时间戳）
+local now = tonumber(ARGV[2])
+--    1.3 要归还租约的节点id，为空时只回收过期的租约
+local nodeId = ARGV[3]
+
+-- 2.数据key（都带有相同的哈希标签，位于同一个槽）
+local stockKey = KEYS[1]
+local shardsKey = KEYS[2]
+local leaseKey = KEYS[3]
+local leaseExpireKey = KEYS[4]
+local soldOutKey = KEYS[5]
+local leaseVouchersKey = KEYS[6]
+--  分片库存不支持租约
+if (redis.call('exists', shardsKey) == 1) then
+    return redis.error_reply('seckill:stock is sharded, leases are not supported')
+end
+
+-- 3.脚本业务
+local returned = 0
+local expires = redis.call('hgetall', leaseExpireKey)
+for i = 1, #expires, 2 do
+    local node = expires[i]
+    if (node == nodeId or tonumber(expires[i + 1]) < now) then
+        local amount = tonumber(redis.call('hget', leaseKey, node)) or 0
+        if (amount > 0) then
+            redis.call('incrby', stockKey, amount)
+            returned = returned + amount
+        end
+        redis.call('hdel', leaseKey, node)
+        redis.call('hdel', leaseExpireKey, node)
+    end
+end
+--  归还了库存，清除售罄标记
+if (returned > 0) then
+    redis.call('del', soldOutKey)
+end
+if (redis.call('hlen', leaseExpireKey) == 0) then
+    redis.call('srem', leaseVouchersKey, voucherId)
+end
+return returned
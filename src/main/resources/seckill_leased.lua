@@ -0,0 +1,64 @@
+-- 租约模式的秒杀：库存已经在节点本地扣减，这里只校验一人一单、扣减节点的租约并发送消息
+-- 1.参数列表
+--    1.1 优惠券id
+local voucherId = ARGV[1]
+--    1.2 用户id
+local userId = ARGV[2]
+--    1.3订单id
+local orderId = ARGV[3]
+--    1.4 节点id
+local nodeId = ARGV[4]
+
+-- 2.数据key（都带有相同的哈希标签，位于同一个槽）
+--  2.1 订单key
+local orderKey = KEYS[1]
+--  2.2 租约key
+local leaseKey = KEYS[2]
+--  2.3 时间窗口key
+local voucherKey = KEYS[3]
+--  2.4 订单队列
+local streamKey = KEYS[4]
+--  2.5 秒杀结束后压缩保存的订单位图（见SeckillOrderCompactor）
+local orderBitmapKey = KEYS[5]
+--  2.6 下单用户 -> 订单id
+local orderIdsKey = KEYS[6]
+
+-- 3.脚本业务
+-- 3.0 秒杀时间窗口：hmget seckill:voucher:{p}:id begin end，哈希不存在时（旧的优惠券）不校验
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+if (window[1] and window[2]) then
+    -- 使用redis的时间，各节点的时钟偏差不影响判断（TIME之后还有写命令，低版本redis需要先开启命令复制）
+    if (redis.replicate_commands) then
+        redis.replicate_commands()
+    end
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(window[1])) then
+        -- 尚未开始，返回4
+        return 4
+    end
+    if (now > tonumber(window[2])) then
+        -- 已经结束，返回5
+        return 5
+    end
+end
+--  3.1判断用户是否下过单（订单集合或者压缩后的位图）
+if (redis.call('sismember', orderKey, userId) == 1
+        or (tonumber(userId) < 4294967296 and redis.call('getbit', orderBitmapKey, userId) == 1)) then
+    -- 若存在，说明是重复下单，返回2
+    return 2
+end
+--  3.2扣减节点的租约，租约已经被回收（过期）时返回3；租约用完或者被回收时删除该节点的字段，避免租约哈希中留下值为0的节点
+local left = redis.call('hincrby', leaseKey, nodeId, -1)
+if (left <= 0) then
+    redis.call('hdel', leaseKey, nodeId)
+    if (left < 0) then
+        return 3
+    end
+end
+--  3.3下单（保存用户） sadd orderKey userId
+redis.call('sadd', orderKey, userId)
+redis.call('hset', orderIdsKey, userId, orderId)
+--  3.4发送消息到队列当中 xadd stream.orders:{p} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,40 @@
+-- 预热秒杀券：redis中没有库存时写入库存（已有库存说明正在售卖，不能覆盖），并且总是写入时间窗口和优惠券信息
+-- 1.参数列表
+--    1.1 优惠券id
+local voucherId = ARGV[1]
+--    1.2 库存
+local stock = tonumber(ARGV[2])
+--    1.3 库存分片数量
+local shards = tonumber(ARGV[3])
+--    1.4 ARGV[4]~ARGV[9]：开始时间、结束时间、店铺id、标题、支付金额、抵扣金额
+--    1.5 调用前是否有库存分片被写入（分片位于不同的槽，由调用方用SET NX写入）
+local shardsLoaded = ARGV[10] == '1'
+
+-- 2.数据key（都带有秒杀券所在分区的哈希标签，位于同一个槽）
+local stockKey = KEYS[1]
+local shardsKey = KEYS[2]
+local soldOutKey = KEYS[3]
+local voucherKey = KEYS[4]
+
+-- 3.脚本业务
+--  3.1 写入库存，分片库存只写入分片数量（各个分片已经由调用方写入）
+local loaded = 0
+if (redis.call('exists', stockKey) == 0 and redis.call('exists', shardsKey) == 0) then
+    if (shards <= 1) then
+        redis.call('set', stockKey, stock)
+    else
+        redis.call('set', shardsKey, shards)
+    end
+    loaded = 1
+end
+if (shardsLoaded) then
+    loaded = 1
+end
+--  3.2 重新写入了库存，清除售罄标记
+if (loaded == 1) then
+    redis.call('del', soldOutKey)
+end
+--  3.3 写入时间窗口和优惠券信息 begin end shopId title payValue actualValue
+redis.call('hset', voucherKey, 'begin', ARGV[4], 'end', ARGV[5], 'shopId', ARGV[6],
+        'title', ARGV[7], 'payValue', ARGV[8], 'actualValue', ARGV[9])
+return loaded
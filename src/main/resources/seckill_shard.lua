@@ -0,0 +1,58 @@
+-- 分片库存的秒杀：只访问调用方选择的一个库存分片（分片的key带有各自的哈希标签，见SeckillKeys）
+-- 1.参数列表
+--    1.1 优惠券id
+local voucherId = ARGV[1]
+--    1.2 用户id
+local userId = ARGV[2]
+--    1.3订单id
+local orderId = ARGV[3]
+--    1.4 秒杀开始、结束时间（毫秒时间戳），为空时不校验。时间窗口保存在秒杀券所在的分区，由调用方从本地缓存传入
+local beginTime = ARGV[4]
+local endTime = ARGV[5]
+
+-- 2.数据key（都带有该分片的哈希标签，位于同一个槽）
+--  2.1 库存分片
+local stockKey = KEYS[1]
+--  2.2 该分片的订单集合
+local orderKey = KEYS[2]
+--  2.3 该分片压缩保存的订单位图
+local orderBitmapKey = KEYS[3]
+--  2.4 该分片所在分区的订单队列
+local streamKey = KEYS[4]
+--  2.5 该分片的下单用户 -> 订单id
+local orderIdsKey = KEYS[5]
+
+-- 3.脚本业务
+-- 3.0 秒杀时间窗口，使用redis的时间
+if (beginTime ~= '' and endTime ~= '') then
+    if (redis.replicate_commands) then
+        redis.replicate_commands()
+    end
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(beginTime)) then
+        -- 尚未开始，返回4
+        return 4
+    end
+    if (now > tonumber(endTime)) then
+        -- 已经结束，返回5
+        return 5
+    end
+end
+-- 3.1 先判断用户是否在该分片下过单：调用方从用户的分片开始按固定的顺序尝试，
+--     用户之前下单的分片一定在有库存的分片之前被检查到，因此先于库存判断
+if (redis.call('sismember', orderKey, userId) == 1
+        or (tonumber(userId) < 4294967296 and redis.call('getbit', orderBitmapKey, userId) == 1)) then
+    -- 重复下单，返回2
+    return 2
+end
+-- 3.2 判断该分片的库存，不足时返回1，由调用方尝试下一个分片
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    return 1
+end
+-- 3.3 扣库存、下单、发送消息到该分片所在分区的订单队列
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+redis.call('hset', orderIdsKey, userId, orderId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,16 @@
+-- 归还库存（对账修复时）：增加库存并清除售罄标记，与seckill_lease_return.lua归还租约相同
+-- 1.参数列表
+--    1.1 归还的数量
+local amount = tonumber(ARGV[1])
+
+-- 2.数据key（都带有秒杀券所在分区的哈希标签，位于同一个槽）
+local stockKey = KEYS[1]
+local soldOutKey = KEYS[2]
+
+-- 3.脚本业务
+local stock = redis.call('incrby', stockKey, amount)
+--  有了库存，清除售罄标记
+if (stock > 0) then
+    redis.call('del', soldOutKey)
+end
+return stock
@@ -0,0 +1,126 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SmileCacheCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 对比缓存值编码器每次读写的耗时、内存分配和编码后的大小（不依赖redis和数据库）
+ * <p>
+ * 耗时较长，默认的mvn test不运行，使用mvn test -Pbenchmark运行；编码器的正确性见CacheCodecTest
+ *
+ * @author 李
+ * @version 1.0
+ */
+@Slf4j
+@Tag("benchmark")
+class CacheCodecBenchmarkTest {
+    private static final int WARMUP = 20_000;
+
+    private static final int ITERATIONS = 100_000;
+
+    private final CacheCodec json = new JsonCacheCodec();
+
+    private final CacheCodec smile = new SmileCacheCodec();
+
+    @Test
+    void benchmarkShop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.now().withNano(0));
+        shop.setUpdateTime(LocalDateTime.now().withNano(0));
+        benchmark("shop", shop, Shop.class);
+    }
+
+    @Test
+    void benchmarkBlog() {
+        Blog blog = new Blog();
+        blog.setId(4L);
+        blog.setShopId(4L);
+        blog.setUserId(2L);
+        blog.setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩");
+        blog.setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg");
+        blog.setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>"
+                + "男朋友给不了的浪漫要学会自己给🍒<br/>无法重来的一生·尽量快乐.<br/><br/>🏰「小筑里·神秘浪漫花园餐厅」🏰<br/><br/>"
+                + "💯这是一家最最最美花园的西餐厅·到处都是花餐桌上是花前台是花  美好无处不在");
+        blog.setLiked(1);
+        blog.setComments(104);
+        blog.setCreateTime(LocalDateTime.now().withNano(0));
+        blog.setUpdateTime(LocalDateTime.now().withNano(0));
+        benchmark("blog", blog, Blog.class);
+    }
+
+    private <T> void benchmark(String name, T value, Class<T> type) {
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(20));
+
+        //原来的实现：hutool序列化，读取时先解析为RedisData，再把JSONObject转为指定类型
+        String legacy = JSONUtil.toJsonStr(redisData);
+        assertEquals(value, JSONUtil.toBean((JSONObject) JSONUtil.toBean(legacy, RedisData.class).getData(), type));
+        measure(name, "legacy-json", legacy.getBytes(StandardCharsets.UTF_8).length,
+                () -> JSONUtil.toJsonStr(redisData),
+                s -> JSONUtil.toBean((JSONObject) JSONUtil.toBean(s, RedisData.class).getData(), type));
+
+        for (CacheCodec codec : new CacheCodec[]{json, smile}) {
+            byte[] raw = codec.encode(redisData);
+            assertEquals(value, codec.decode(raw, type).getData());
+            measure(name, codec.name(), raw.length, () -> codec.encode(redisData), r -> codec.decode(r, type));
+        }
+    }
+
+    private <E> void measure(String name, String codec, int size, Supplier<E> encoder, Function<E, ?> decoder) {
+        E encoded = encoder.get();
+        for (int i = 0; i < WARMUP; i++) {
+            encoder.get();
+            decoder.apply(encoded);
+        }
+        long[] encode = run(() -> encoder.get());
+        long[] decode = run(() -> decoder.apply(encoded));
+        log.info("{} {}: {} bytes, encode {} ns/op {} B/op, decode {} ns/op {} B/op",
+                name, codec, size, encode[0], encode[1], decode[0], decode[1]);
+    }
+
+    //返回 {每次耗时ns, 每次分配的字节数}
+    private static long[] run(Runnable op) {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        long nanos = System.nanoTime() - begin;
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+        return new long[]{nanos / ITERATIONS, allocated / ITERATIONS};
+    }
+}
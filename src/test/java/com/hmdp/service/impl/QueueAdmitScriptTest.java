@@ -0,0 +1,120 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.utils.LuaRedis;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 排队脚本queue_join.lua、queue_admit.lua：领取号码和分批放行（用luaj执行classpath下的脚本）
+ *
+ * @author 李
+ * @version 1.0
+ */
+class QueueAdmitScriptTest {
+    private static final String SEQ = "seckill:queue:{0}:1:seq";
+
+    private static final String QUEUE = "seckill:queue:{0}:1";
+
+    private static final String ADMIT = "seckill:queue:{0}:1:admit";
+
+    private static final String SOLD_OUT = "seckill:soldout:{0}:1";
+
+    private static final List<String> ADMIT_KEYS = Arrays.asList(SEQ, ADMIT, SOLD_OUT);
+
+    private static final long TTL = 3_600_000;
+
+    private final LuaRedis redis = new LuaRedis();
+
+    private long admit(long now, boolean advance) {
+        return (Long) redis.eval("queue_admit", ADMIT_KEYS,
+                String.valueOf(now), "100", "1000", advance ? "1" : "0", String.valueOf(TTL));
+    }
+
+    private long join(long userId) {
+        return (Long) redis.eval("queue_join", Arrays.asList(SEQ, QUEUE, SOLD_OUT),
+                String.valueOf(userId), String.valueOf(TTL));
+    }
+
+    private void issue(int tickets) {
+        redis.set(SEQ, String.valueOf(tickets));
+    }
+
+    @Test
+    void joinReturnsSameTicket() {
+        assertEquals(1, join(1001));
+        assertEquals(2, join(1002));
+        assertEquals(1, join(1001));
+        assertEquals("2", redis.get(SEQ));
+        assertEquals(TTL, redis.pttl(QUEUE).longValue());
+    }
+
+    @Test
+    void notAdvancingBeforeStart() {
+        issue(500);
+        assertEquals(0, admit(0, false));
+        assertEquals(0, admit(5000, false));
+        assertFalse(redis.exists(ADMIT));
+        //开始后第一批立即放行
+        assertEquals(100, admit(6000, true));
+        assertEquals(TTL, redis.pttl(ADMIT).longValue());
+    }
+
+    @Test
+    void oneBatchPerInterval() {
+        issue(1000);
+        assertEquals(100, admit(0, true));
+        //不足一个间隔不放行
+        assertEquals(100, admit(999, true));
+        assertEquals(200, admit(1000, true));
+        assertEquals(200, admit(1500, true));
+        assertEquals(300, admit(2000, true));
+        //只读取时不推进
+        assertEquals(300, admit(9000, false));
+    }
+
+    @Test
+    void catchUpMultipleIntervalsKeepsRemainder() {
+        issue(1000);
+        admit(0, true);
+        //3.5个间隔没有刷新，补放3批，last只前进3个间隔
+        assertEquals(400, admit(3500, true));
+        assertEquals("3000", redis.hget(ADMIT, "last"));
+        //剩下的半个间隔计入下一批
+        assertEquals(500, admit(4000, true));
+    }
+
+    @Test
+    void cappedAtIssuedTickets() {
+        issue(30);
+        assertEquals(30, admit(0, true));
+        //无人排队时进度不空转，之后排队的用户仍然分批放行
+        assertEquals(30, admit(10_000, true));
+        issue(330);
+        assertEquals(30, admit(10_500, true));
+        assertEquals(130, admit(11_000, true));
+        assertEquals(230, admit(12_000, true));
+    }
+
+    @Test
+    void neverGoesBackwards() {
+        issue(200);
+        assertEquals(100, admit(0, true));
+        //号码计数器被重置（例如过期）时不回退
+        redis.set(SEQ, "0");
+        assertEquals(100, admit(1000, true));
+    }
+
+    @Test
+    void soldOut() {
+        issue(200);
+        admit(0, true);
+        redis.set(SOLD_OUT, "1");
+        assertEquals(-1, admit(1000, true));
+        assertEquals(-1, admit(1000, false));
+        assertEquals(-1, join(1001));
+    }
+}
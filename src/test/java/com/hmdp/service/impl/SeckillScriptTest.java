@@ -0,0 +1,151 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.utils.LuaRedis;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 秒杀脚本seckill.lua（默认模式）和seckill_lease.lua、seckill_leased.lua（租约模式）：下单、一人一单、售罄标记
+ * （用luaj执行classpath下的脚本）
+ *
+ * @author 李
+ * @version 1.0
+ */
+class SeckillScriptTest {
+    private static final String STOCK = "seckill:stock:{0}:1";
+
+    private static final String SHARDS = "seckill:stock:{0}:1:shards";
+
+    private static final String ORDER = "seckill:order:{0}:1";
+
+    private static final String ORDER_IDS = "seckill:order:{0}:1:ids";
+
+    private static final String VOUCHER = "seckill:voucher:{0}:1";
+
+    private static final String STREAM = "stream.orders:{0}";
+
+    private static final String SOLD_OUT = "seckill:soldout:{0}:1";
+
+    private static final String LEASE = "seckill:lease:{0}:1";
+
+    private static final String LEASE_EXPIRE = "seckill:lease:expire:{0}:1";
+
+    private final LuaRedis redis = new LuaRedis();
+
+    private long seckill(long userId) {
+        List<String> keys = Arrays.asList(STOCK, ORDER, SHARDS, VOUCHER, STREAM, ORDER + ":bitmap", ORDER_IDS, SOLD_OUT);
+        return (Long) redis.eval("seckill", keys, "1", String.valueOf(userId), String.valueOf(userId * 10));
+    }
+
+    private long lease(String node, int chunk) {
+        List<String> keys = Arrays.asList(STOCK, SHARDS, LEASE, LEASE_EXPIRE, "seckill:lease:vouchers:{0}", SOLD_OUT);
+        return (Long) redis.eval("seckill_lease", keys, "1", node, String.valueOf(chunk), "0");
+    }
+
+    private long seckillLeased(long userId, String node) {
+        List<String> keys = Arrays.asList(ORDER, LEASE, VOUCHER, STREAM, ORDER + ":bitmap", ORDER_IDS);
+        return (Long) redis.eval("seckill_leased", keys, "1", String.valueOf(userId), String.valueOf(userId * 10), node);
+    }
+
+    private long queueJoin(long userId) {
+        return (Long) redis.eval("queue_join", Arrays.asList("seckill:queue:{0}:1:seq", "seckill:queue:{0}:1", SOLD_OUT),
+                String.valueOf(userId), "3600000");
+    }
+
+    @Test
+    void orderAndDuplicate() {
+        redis.set(STOCK, "5");
+        assertEquals(0, seckill(1001));
+        assertEquals(2, seckill(1001));
+        assertEquals("4", redis.get(STOCK));
+        assertTrue(redis.smembers(ORDER).contains("1001"));
+        assertEquals("10010", redis.hget(ORDER_IDS, "1001"));
+        assertEquals(1, redis.xrange(STREAM).size());
+        assertEquals("10010", redis.xrange(STREAM).get(0).get("id"));
+        assertFalse(redis.exists(SOLD_OUT));
+    }
+
+    @Test
+    void window() {
+        redis.set(STOCK, "5");
+        redis.eval("seckill_preheat", Arrays.asList(STOCK, SHARDS, SOLD_OUT, VOUCHER),
+                "1", "5", "1", "1000", "2000", "1", "", "0", "0", "0");
+        redis.setTime(999);
+        assertEquals(4, seckill(1001));
+        redis.setTime(2001);
+        assertEquals(5, seckill(1001));
+        redis.setTime(1500);
+        assertEquals(0, seckill(1001));
+    }
+
+    @Test
+    void shardedVoucherReturns6() {
+        redis.set(SHARDS, "4");
+        assertEquals(6, seckill(1001));
+    }
+
+    @Test
+    void soldOutFlagInDefaultMode() {
+        redis.set(STOCK, "2");
+        assertEquals(0, seckill(1001));
+        assertFalse(redis.exists(SOLD_OUT));
+        assertEquals(1, queueJoin(2001));
+        //扣完最后一个库存时写入售罄标记，排队脚本不再发放号码
+        assertEquals(0, seckill(1002));
+        assertEquals("1", redis.get(SOLD_OUT));
+        assertEquals(-1, queueJoin(2002));
+        assertEquals(1, seckill(1003));
+
+        //归还库存时删除售罄标记，再次扣完时重新写入
+        redis.eval("seckill_stock_return", Arrays.asList(STOCK, SOLD_OUT), "1");
+        assertFalse(redis.exists(SOLD_OUT));
+        assertEquals(0, seckill(1003));
+        assertEquals("1", redis.get(SOLD_OUT));
+    }
+
+    @Test
+    void soldOutFlagInLeaseMode() {
+        redis.set(STOCK, "3");
+        assertEquals(2, lease("a", 2));
+        //库存已经被租完，但节点a、b还持有租约，没有售罄
+        assertEquals(1, lease("b", 2));
+        assertEquals("0", redis.get(STOCK));
+        assertFalse(redis.exists(SOLD_OUT));
+
+        assertEquals(0, seckillLeased(1001, "a"));
+        assertEquals(0, seckillLeased(1002, "a"));
+        assertEquals(0, seckillLeased(1003, "b"));
+        //节点a的租约已经用完，再次租用时发现所有租约都已用完
+        assertEquals(0, lease("a", 2));
+        assertEquals("1", redis.get(SOLD_OUT));
+        assertEquals(-1, queueJoin(2001));
+    }
+
+    @Test
+    void noSoldOutFlagWhileOtherNodesHoldLeases() {
+        redis.set(STOCK, "3");
+        assertEquals(2, lease("a", 2));
+        assertEquals(1, lease("b", 2));
+        assertEquals(0, seckillLeased(1001, "b"));
+        //节点a还有2个租用的库存
+        assertEquals(0, lease("b", 2));
+        assertFalse(redis.exists(SOLD_OUT));
+    }
+
+    @Test
+    void leaseFieldRemovedWhenUsedUpOrReclaimed() {
+        redis.set(STOCK, "3");
+        assertEquals(1, lease("a", 1));
+        assertEquals(0, seckillLeased(1001, "a"));
+        //节点a的租约用完，删除字段
+        assertNull(redis.hget(LEASE, "a"));
+        //节点b没有租约（已经被回收），不留下值为0的字段
+        assertEquals(3, seckillLeased(1002, "b"));
+        assertTrue(redis.hgetAll(LEASE).isEmpty());
+        assertFalse(redis.smembers(ORDER).contains("1002"));
+    }
+}
@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓存值编码器的读写和按数据格式选择编码器（不依赖redis和数据库）
+ *
+ * @author 李
+ * @version 1.0
+ */
+class CacheCodecTest {
+    private final CacheCodec json = new JsonCacheCodec();
+
+    private final CacheCodec smile = new SmileCacheCodec();
+
+    private final List<CacheCodec> codecs = Arrays.asList(json, smile);
+
+    @Test
+    void roundTripTtlAndLogicalExpire() {
+        for (CacheCodec codec : codecs) {
+            RedisData<Shop> ttl = redisData(shop(), null);
+            RedisData<Shop> decoded = codec.decode(codec.encode(ttl), Shop.class);
+            assertEquals(shop(), decoded.getData(), codec.name());
+            assertNull(decoded.getExpireTime(), codec.name());
+
+            LocalDateTime expireTime = LocalDateTime.now().plusMinutes(20).withNano(0);
+            decoded = codec.decode(codec.encode(redisData(shop(), expireTime)), Shop.class);
+            //泛型的RedisData<T>直接解码为指定类型，而不是JSONObject或Map
+            assertTrue(decoded.getData() instanceof Shop, codec.name());
+            assertEquals(shop(), decoded.getData(), codec.name());
+            assertEquals(expireTime, decoded.getExpireTime(), codec.name());
+        }
+    }
+
+    @Test
+    void roundTripArray() {
+        Voucher[] vouchers = {voucher(1L, "50元代金券"), voucher(2L, "100元代金券")};
+        for (CacheCodec codec : codecs) {
+            Voucher[] decoded = codec.decode(codec.encode(redisData(vouchers, null)), Voucher[].class).getData();
+            assertArrayEquals(vouchers, decoded, codec.name());
+
+            LocalDateTime expireTime = LocalDateTime.now().plusMinutes(20).withNano(0);
+            RedisData<Voucher[]> logical = codec.decode(codec.encode(redisData(vouchers, expireTime)), Voucher[].class);
+            assertArrayEquals(vouchers, logical.getData(), codec.name());
+            assertEquals(expireTime, logical.getExpireTime(), codec.name());
+
+            assertArrayEquals(new Voucher[0],
+                    codec.decode(codec.encode(redisData(new Voucher[0], null)), Voucher[].class).getData(), codec.name());
+        }
+    }
+
+    @Test
+    void roundTripNullData() {
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(20).withNano(0);
+        for (CacheCodec codec : codecs) {
+            RedisData<Shop> decoded = codec.decode(codec.encode(redisData(null, expireTime)), Shop.class);
+            assertNull(decoded.getData(), codec.name());
+            assertEquals(expireTime, decoded.getExpireTime(), codec.name());
+        }
+    }
+
+    @Test
+    void acceptsOnlyOwnFormat() {
+        byte[] jsonRaw = json.encode(redisData(shop(), null));
+        byte[] smileRaw = smile.encode(redisData(shop(), null));
+        assertTrue(json.accepts(jsonRaw));
+        assertFalse(smile.accepts(jsonRaw));
+        assertTrue(smile.accepts(smileRaw));
+        assertFalse(json.accepts(smileRaw));
+        //缓存穿透的空值""由CacheClient处理，任何编码器都不能识别
+        assertFalse(json.accepts(new byte[0]));
+        assertFalse(smile.accepts(new byte[0]));
+    }
+
+    @Test
+    void detectByHeader() {
+        byte[] jsonRaw = json.encode(redisData(shop(), null));
+        byte[] smileRaw = smile.encode(redisData(shop(), null));
+        assertSame(smile, CacheCodec.detect(smileRaw, smile, codecs));
+        assertSame(json, CacheCodec.detect(jsonRaw, smile, codecs));
+        assertSame(smile, CacheCodec.detect(smileRaw, json, codecs));
+        assertSame(json, CacheCodec.detect(jsonRaw, json, codecs));
+        //都不能识别时使用当前编码器
+        byte[] unknown = "null".getBytes(StandardCharsets.UTF_8);
+        assertSame(smile, CacheCodec.detect(unknown, smile, codecs));
+        assertSame(json, CacheCodec.detect(unknown, json, codecs));
+    }
+
+    @Test
+    void readLegacyJsonInSmileMode() {
+        //切换为smile之前由hutool写入的数据：普通缓存是对象的json，逻辑过期的缓存是RedisData的json
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(20).withNano(0);
+        byte[] ttl = JSONUtil.toJsonStr(shop()).getBytes(StandardCharsets.UTF_8);
+        byte[] logical = JSONUtil.toJsonStr(redisData(shop(), expireTime)).getBytes(StandardCharsets.UTF_8);
+        Voucher[] vouchers = {voucher(1L, "50元代金券")};
+        byte[] array = JSONUtil.toJsonStr(vouchers).getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(shop(), CacheCodec.detect(ttl, smile, codecs).decode(ttl, Shop.class).getData());
+        RedisData<Shop> decoded = CacheCodec.detect(logical, smile, codecs).decode(logical, Shop.class);
+        assertEquals(shop(), decoded.getData());
+        assertEquals(expireTime, decoded.getExpireTime());
+        assertArrayEquals(vouchers, CacheCodec.detect(array, smile, codecs).decode(array, Voucher[].class).getData());
+    }
+
+    private static <T> RedisData<T> redisData(T data, LocalDateTime expireTime) {
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setData(data);
+        redisData.setExpireTime(expireTime);
+        return redisData;
+    }
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setScore(37);
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        return shop;
+    }
+
+    private static Voucher voucher(Long id, String title) {
+        return new Voucher().setId(id).setShopId(1L).setTitle(title).setPayValue(4750L).setActualValue(5000L)
+                .setType(1).setStatus(1);
+    }
+}
@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 热点key探测器：Count-Min Sketch的保守更新、采样、衰减，以及热点key的晋升、降级和数量上限
+ *
+ * @author 李
+ * @version 1.0
+ */
+class HotKeyDetectorTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private HotKeyDetector detector(int sampleRate, int threshold, int maxHotKeys) {
+        HotKeyDetector detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "sampleRate", sampleRate);
+        ReflectionTestUtils.setField(detector, "threshold", threshold);
+        ReflectionTestUtils.setField(detector, "maxHotKeys", maxHotKeys);
+        ReflectionTestUtils.invokeMethod(detector, "init");
+        return detector;
+    }
+
+    private static int estimate(HotKeyDetector detector, String key) {
+        Integer estimate = ReflectionTestUtils.invokeMethod(detector, "estimate", key);
+        return estimate == null ? 0 : estimate;
+    }
+
+    private static int[] indexes(String key) {
+        return ReflectionTestUtils.invokeMethod(HotKeyDetector.class, "indexes", key);
+    }
+
+    @Test
+    void disabled() {
+        HotKeyDetector detector = detector(1, 1, 10);
+        ReflectionTestUtils.setField(detector, "enabled", false);
+        assertFalse(detector.record("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:1"));
+        assertEquals(0, estimate(detector, "cache:shop:1"));
+    }
+
+    @Test
+    void conservativeUpdate() {
+        HotKeyDetector detector = detector(1, 1000, 10);
+        String key = "cache:shop:1";
+        int[] indexes = indexes(key);
+        //模拟其他key在第0行的冲突
+        AtomicIntegerArray counters = (AtomicIntegerArray) ReflectionTestUtils.getField(detector, "counters");
+        counters.set(indexes[0], 7);
+        for (int i = 0; i < 3; i++) {
+            detector.record(key);
+        }
+        //只增加等于最小值的计数器，冲突的计数器不变
+        assertEquals(7, counters.get(indexes[0]));
+        for (int i = 1; i < indexes.length; i++) {
+            assertEquals(3, counters.get(indexes[i]));
+        }
+        assertEquals(3, estimate(detector, key));
+        //最小值追上冲突的计数器之后一起增加
+        for (int i = 0; i < 5; i++) {
+            detector.record(key);
+        }
+        assertEquals(8, counters.get(indexes[0]));
+        assertEquals(8, estimate(detector, key));
+    }
+
+    @Test
+    void sampling() {
+        HotKeyDetector detector = detector(4, Integer.MAX_VALUE, 10);
+        String key = "cache:shop:1";
+        for (int i = 0; i < 40_000; i++) {
+            detector.record(key);
+        }
+        //约1/4的访问被记录，期望10000，标准差约87
+        int estimate = estimate(detector, key);
+        assertTrue(estimate > 9_000 && estimate < 11_000, "estimate " + estimate);
+    }
+
+    @Test
+    void promoteAtThreshold() {
+        HotKeyDetector detector = detector(1, 10, 10);
+        String key = "cache:shop:1";
+        for (int i = 0; i < 9; i++) {
+            assertFalse(detector.record(key));
+        }
+        assertFalse(detector.isHot(key));
+        assertTrue(detector.record(key));
+        assertTrue(detector.isHot(key));
+        assertEquals(1, meterRegistry.get("cache.hotkey.promoted").counter().count());
+    }
+
+    @Test
+    void decayHalvesCounters() {
+        HotKeyDetector detector = detector(1, 1000, 10);
+        String key = "cache:shop:1";
+        for (int i = 0; i < 9; i++) {
+            detector.record(key);
+        }
+        detector.decay();
+        assertEquals(4, estimate(detector, key));
+        detector.decay();
+        assertEquals(2, estimate(detector, key));
+        detector.decay();
+        detector.decay();
+        assertEquals(0, estimate(detector, key));
+    }
+
+    @Test
+    void demoteBelowHalfThreshold() {
+        HotKeyDetector detector = detector(1, 10, 10);
+        List<String> demoted = new ArrayList<>();
+        detector.onDemote(demoted::add);
+        String key = "cache:shop:1";
+        for (int i = 0; i < 10; i++) {
+            detector.record(key);
+        }
+        assertTrue(detector.isHot(key));
+        //10 -> 5，不低于threshold的一半，仍然是热点key
+        detector.decay();
+        assertTrue(detector.isHot(key));
+        assertTrue(demoted.isEmpty());
+        //5 -> 2，降级并通知监听器
+        detector.decay();
+        assertFalse(detector.isHot(key));
+        assertEquals(1, demoted.size());
+        assertEquals(key, demoted.get(0));
+        assertEquals(1, meterRegistry.get("cache.hotkey.demoted").counter().count());
+    }
+
+    @Test
+    void demoteListenerFailureDoesNotStopDecay() {
+        HotKeyDetector detector = detector(1, 2, 10);
+        detector.onDemote(key -> {
+            throw new IllegalStateException("evict failed");
+        });
+        detector.record("cache:shop:1");
+        detector.record("cache:shop:1");
+        detector.record("cache:shop:2");
+        detector.record("cache:shop:2");
+        //2 -> 1 -> 0
+        detector.decay();
+        detector.decay();
+        assertFalse(detector.isHot("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:2"));
+    }
+
+    @Test
+    void maxHotKeys() {
+        HotKeyDetector detector = detector(1, 2, 2);
+        for (String key : new String[]{"cache:shop:1", "cache:shop:2", "cache:shop:3"}) {
+            detector.record(key);
+            detector.record(key);
+        }
+        assertTrue(detector.isHot("cache:shop:1"));
+        assertTrue(detector.isHot("cache:shop:2"));
+        //达到上限后不再晋升
+        assertFalse(detector.isHot("cache:shop:3"));
+        assertEquals(2.0, meterRegistry.get("cache.hotkey.count").gauge().value());
+
+        //降级腾出位置后可以晋升
+        detector.decay();
+        detector.decay();
+        assertFalse(detector.isHot("cache:shop:1"));
+        for (int i = 0; i < 2; i++) {
+            detector.record("cache:shop:3");
+        }
+        assertTrue(detector.isHot("cache:shop:3"));
+    }
+}
@@ -0,0 +1,339 @@
+package com.hmdp.utils;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 用luaj执行classpath下的lua脚本（与RedisScripts加载的是同一个文件），redis.call由内存中的数据实现
+ * <p>
+ * 只实现了脚本中用到的命令，脚本使用其他命令时抛出异常；TIME返回setTime设置的时间
+ *
+ * @author 李
+ * @version 1.0
+ */
+public class LuaRedis {
+    //key -> String、Map（哈希，有序集合的score同样保存为字符串）、Set（集合）、BitSet（位图）、List（stream）
+    private final Map<String, Object> data = new HashMap<>();
+
+    //key -> pexpire设置的有效期（毫秒），只记录不过期
+    private final Map<String, Long> ttls = new HashMap<>();
+
+    private final Map<String, String> scripts = new HashMap<>();
+
+    private long time = System.currentTimeMillis();
+
+    public void setTime(long millis) {
+        this.time = millis;
+    }
+
+    /**
+     * 执行脚本
+     *
+     * @param name 脚本名称（文件名，不含.lua）
+     * @return 整数返回Long，字符串返回String，nil返回null
+     */
+    public Object eval(String name, List<String> keys, String... args) {
+        Globals globals = JsePlatform.standardGlobals();
+        globals.set("KEYS", table(keys));
+        globals.set("ARGV", table(Arrays.asList(args)));
+        LuaTable redis = new LuaTable();
+        redis.set("call", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs varargs) {
+                String[] command = new String[varargs.narg()];
+                for (int i = 0; i < command.length; i++) {
+                    command[i] = toRedisArg(varargs.arg(i + 1));
+                }
+                return execute(command);
+            }
+        });
+        redis.set("error_reply", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue msg) {
+                LuaTable error = new LuaTable();
+                error.set("err", msg);
+                return error;
+            }
+        });
+        globals.set("redis", redis);
+        LuaValue result = globals.load(script(name), name).call();
+        if (result.istable() && !result.get("err").isnil()) {
+            throw new IllegalStateException(result.get("err").tojstring());
+        }
+        if (result.isnumber()) {
+            return (long) result.todouble();
+        }
+        if (result.isstring()) {
+            return result.tojstring();
+        }
+        return null;
+    }
+
+    public String get(String key) {
+        return (String) data.get(key);
+    }
+
+    public void set(String key, String value) {
+        data.put(key, value);
+    }
+
+    public boolean exists(String key) {
+        return data.containsKey(key);
+    }
+
+    public String hget(String key, String field) {
+        return hash(key, false).get(field);
+    }
+
+    public Map<String, String> hgetAll(String key) {
+        return hash(key, false);
+    }
+
+    public Set<String> smembers(String key) {
+        return set(key, false);
+    }
+
+    public List<Map<String, String>> xrange(String key) {
+        return stream(key, false);
+    }
+
+    public Long pttl(String key) {
+        return ttls.get(key);
+    }
+
+    private String script(String name) {
+        return scripts.computeIfAbsent(name, n -> {
+            try {
+                return StreamUtils.copyToString(
+                        new ClassPathResource(n + ".lua").getInputStream(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private LuaValue execute(String[] c) {
+        String cmd = c[0].toLowerCase(Locale.ROOT);
+        switch (cmd) {
+            case "time":
+                return table(Arrays.asList(String.valueOf(time / 1000), String.valueOf(time % 1000 * 1000)));
+            case "exists":
+                return integer(data.containsKey(c[1]) ? 1 : 0);
+            case "del":
+                ttls.remove(c[1]);
+                return integer(data.remove(c[1]) == null ? 0 : 1);
+            case "pexpire":
+                if (!data.containsKey(c[1])) {
+                    return integer(0);
+                }
+                ttls.put(c[1], Long.parseLong(c[2]));
+                return integer(1);
+            case "get":
+                return bulk((String) data.get(c[1]));
+            case "set":
+                data.put(c[1], c[2]);
+                return status();
+            case "incr":
+                return integer(incrBy(c[1], 1));
+            case "incrby":
+                return integer(incrBy(c[1], Long.parseLong(c[2])));
+            case "getbit": {
+                BitSet bits = (BitSet) data.get(c[1]);
+                return integer(bits != null && bits.get(Integer.parseInt(c[2])) ? 1 : 0);
+            }
+            case "hget":
+                return bulk(hash(c[1], false).get(c[2]));
+            case "hmget": {
+                Map<String, String> hash = hash(c[1], false);
+                LuaTable values = new LuaTable();
+                for (int i = 2; i < c.length; i++) {
+                    values.set(i - 1, bulk(hash.get(c[i])));
+                }
+                return values;
+            }
+            case "hgetall": {
+                List<String> values = new ArrayList<>();
+                hash(c[1], false).forEach((k, v) -> {
+                    values.add(k);
+                    values.add(v);
+                });
+                return table(values);
+            }
+            case "hset":
+            case "hmset": {
+                Map<String, String> hash = hash(c[1], true);
+                int added = 0;
+                for (int i = 2; i + 1 < c.length; i += 2) {
+                    if (hash.put(c[i], c[i + 1]) == null) {
+                        added++;
+                    }
+                }
+                return "hmset".equals(cmd) ? status() : integer(added);
+            }
+            case "hincrby": {
+                Map<String, String> hash = hash(c[1], true);
+                long value = Long.parseLong(hash.getOrDefault(c[2], "0")) + Long.parseLong(c[3]);
+                hash.put(c[2], String.valueOf(value));
+                return integer(value);
+            }
+            case "hdel": {
+                Map<String, String> hash = hash(c[1], false);
+                int removed = 0;
+                for (int i = 2; i < c.length; i++) {
+                    if (hash.remove(c[i]) != null) {
+                        removed++;
+                    }
+                }
+                removeIfEmpty(c[1], hash);
+                return integer(removed);
+            }
+            case "hlen":
+                return integer(hash(c[1], false).size());
+            case "sadd": {
+                Set<String> set = set(c[1], true);
+                int added = 0;
+                for (int i = 2; i < c.length; i++) {
+                    if (set.add(c[i])) {
+                        added++;
+                    }
+                }
+                return integer(added);
+            }
+            case "srem": {
+                Set<String> set = set(c[1], false);
+                int removed = 0;
+                for (int i = 2; i < c.length; i++) {
+                    if (set.remove(c[i])) {
+                        removed++;
+                    }
+                }
+                removeIfEmpty(c[1], set);
+                return integer(removed);
+            }
+            case "sismember":
+                return integer(set(c[1], false).contains(c[2]) ? 1 : 0);
+            case "scard":
+                return integer(set(c[1], false).size());
+            case "zadd": {
+                Map<String, String> zset = hash(c[1], true);
+                return integer(zset.put(c[3], c[2]) == null ? 1 : 0);
+            }
+            case "zscore":
+                return bulk(hash(c[1], false).get(c[2]));
+            case "xadd": {
+                Map<String, String> entry = new LinkedHashMap<>();
+                for (int i = 3; i + 1 < c.length; i += 2) {
+                    entry.put(c[i], c[i + 1]);
+                }
+                List<Map<String, String>> stream = stream(c[1], true);
+                stream.add(entry);
+                return bulk(time + "-" + (stream.size() - 1));
+            }
+            default:
+                throw new LuaError("LuaRedis不支持的命令: " + cmd);
+        }
+    }
+
+    private long incrBy(String key, long increment) {
+        long value = Long.parseLong((String) data.getOrDefault(key, "0")) + increment;
+        data.put(key, String.valueOf(value));
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> hash(String key, boolean create) {
+        Object value = data.get(key);
+        if (value == null) {
+            if (!create) {
+                return new LinkedHashMap<>();
+            }
+            value = new LinkedHashMap<String, String>();
+            data.put(key, value);
+        }
+        return (Map<String, String>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> set(String key, boolean create) {
+        Object value = data.get(key);
+        if (value == null) {
+            if (!create) {
+                return new LinkedHashSet<>();
+            }
+            value = new LinkedHashSet<String>();
+            data.put(key, value);
+        }
+        return (Set<String>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, String>> stream(String key, boolean create) {
+        Object value = data.get(key);
+        if (value == null) {
+            if (!create) {
+                return new ArrayList<>();
+            }
+            value = new ArrayList<Map<String, String>>();
+            data.put(key, value);
+        }
+        return (List<Map<String, String>>) value;
+    }
+
+    //集合、哈希的最后一个元素被删除时，key也被删除
+    private void removeIfEmpty(String key, Collection<?> collection) {
+        if (collection.isEmpty()) {
+            data.remove(key);
+        }
+    }
+
+    private void removeIfEmpty(String key, Map<?, ?> map) {
+        if (map.isEmpty()) {
+            data.remove(key);
+        }
+    }
+
+    //数字参数按redis的规则转为字符串：整数不带小数点
+    private static String toRedisArg(LuaValue value) {
+        if (value.type() == LuaValue.TNUMBER) {
+            double d = value.todouble();
+            return d == Math.floor(d) && !Double.isInfinite(d) ? String.valueOf((long) d) : String.valueOf(d);
+        }
+        return value.tojstring();
+    }
+
+    private static LuaTable table(List<String> values) {
+        LuaTable table = new LuaTable();
+        for (int i = 0; i < values.size(); i++) {
+            table.set(i + 1, LuaValue.valueOf(values.get(i)));
+        }
+        return table;
+    }
+
+    private static LuaValue integer(long value) {
+        return LuaValue.valueOf((double) value);
+    }
+
+    //nil回复在lua中为false
+    private static LuaValue bulk(String value) {
+        return value == null ? LuaValue.FALSE : LuaValue.valueOf(value);
+    }
+
+    private static LuaValue status() {
+        LuaTable ok = new LuaTable();
+        ok.set("ok", "OK");
+        return ok;
+    }
+}
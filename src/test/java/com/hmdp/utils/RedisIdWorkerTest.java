@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * 号段模式的id生成器：号段用完时切换到预取的号段、跨天时重新租用当天的号段（redis的INCRBY用内存计数器代替）
+ *
+ * @author 李
+ * @version 1.0
+ */
+class RedisIdWorkerTest {
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    private static final long STEP = 10;
+
+    private final ConcurrentHashMap<String, AtomicLong> redis = new ConcurrentHashMap<>();
+
+    private ValueOperations<String, String> valueOperations;
+
+    private RedisIdWorker idWorker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        valueOperations = mock(ValueOperations.class);
+        when(valueOperations.increment(anyString(), anyLong())).thenAnswer(invocation ->
+                redis.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong())
+                        .addAndGet(invocation.getArgument(1)));
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+
+        idWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(idWorker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(idWorker, "step", STEP);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(idWorker, "destroy");
+    }
+
+    private void setTime(LocalDateTime time) {
+        ReflectionTestUtils.setField(idWorker, "clock", Clock.fixed(time.toInstant(ZoneOffset.UTC), ZoneId.of("UTC")));
+    }
+
+    private static long count(long id) {
+        return id & 0xFFFFFFFFL;
+    }
+
+    @Test
+    void idLayout() {
+        LocalDateTime time = LocalDateTime.of(2022, 5, 1, 12, 0, 0);
+        setTime(time);
+        long id = idWorker.nextId("order");
+        assertEquals(time.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP, id >>> 32);
+        assertEquals(1, count(id));
+    }
+
+    @Test
+    void segmentRollOver() {
+        setTime(LocalDateTime.of(2022, 5, 1, 12, 0, 0));
+        //跨越3个号段，序列号连续
+        for (long i = 1; i <= STEP * 3 - 1; i++) {
+            assertEquals(i, count(idWorker.nextId("order")));
+        }
+        //每个号段剩余20%时预取下一个号段，第3个号段的预取也已经发出
+        verify(valueOperations, timeout(1000).times(4)).increment("icr:order:2022:05:01", STEP);
+        assertEquals(STEP * 4, redis.get("icr:order:2022:05:01").get());
+        //不同的业务前缀使用各自的号段
+        assertEquals(1, count(idWorker.nextId("shop")));
+    }
+
+    @Test
+    void dayChange() {
+        setTime(LocalDateTime.of(2022, 5, 1, 23, 59, 59));
+        for (long i = 1; i <= STEP - 1; i++) {
+            assertEquals(i, count(idWorker.nextId("order")));
+        }
+        //已经预取了当天的下一个号段
+        verify(valueOperations, timeout(1000).times(2)).increment("icr:order:2022:05:01", STEP);
+
+        //跨天后丢弃前一天的号段，从当天的key重新计数
+        LocalDateTime tomorrow = LocalDateTime.of(2022, 5, 2, 0, 0, 0);
+        setTime(tomorrow);
+        long id = idWorker.nextId("order");
+        assertEquals(1, count(id));
+        assertEquals(tomorrow.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP, id >>> 32);
+        verify(valueOperations).increment("icr:order:2022:05:02", STEP);
+        assertEquals(2, count(idWorker.nextId("order")));
+    }
+
+    @Test
+    void concurrentIdsAreUnique() throws Exception {
+        setTime(LocalDateTime.of(2022, 5, 1, 12, 0, 0));
+        int threads = 8;
+        int perThread = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                List<Long> ids = new ArrayList<>(perThread);
+                for (int i = 0; i < perThread; i++) {
+                    ids.add(idWorker.nextId("order"));
+                }
+                return ids;
+            }));
+        }
+        start.countDown();
+        Set<Long> ids = new HashSet<>();
+        for (Future<List<Long>> future : futures) {
+            ids.addAll(future.get());
+        }
+        executor.shutdown();
+        assertEquals(threads * perThread, ids.size());
+    }
+}
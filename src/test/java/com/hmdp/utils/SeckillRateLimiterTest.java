@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import com.hmdp.utils.SeckillRateLimiter.LocalBucket;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 本地令牌桶：初始满桶、按速率补充、不超过容量
+ *
+ * @author 李
+ * @version 1.0
+ */
+class SeckillRateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static int acquire(LocalBucket bucket, long now, int times) {
+        int acquired = 0;
+        for (int i = 0; i < times; i++) {
+            if (bucket.tryAcquire(now)) {
+                acquired++;
+            }
+        }
+        return acquired;
+    }
+
+    @Test
+    void burstUpToCapacity() {
+        LocalBucket bucket = new LocalBucket(10, 5, 0);
+        assertEquals(5, acquire(bucket, 0, 10));
+        assertFalse(bucket.tryAcquire(0));
+    }
+
+    @Test
+    void refillAtRate() {
+        LocalBucket bucket = new LocalBucket(10, 5, 0);
+        acquire(bucket, 0, 5);
+        //0.05秒只补充半个令牌
+        assertFalse(bucket.tryAcquire(SECOND / 20));
+        //0.1秒补充1个令牌
+        assertTrue(bucket.tryAcquire(SECOND / 10));
+        assertFalse(bucket.tryAcquire(SECOND / 10));
+        //再过0.25秒补充2.5个令牌
+        assertEquals(2, acquire(bucket, SECOND * 35 / 100, 5));
+        //剩下的半个令牌保留到下一次补充
+        assertTrue(bucket.tryAcquire(SECOND * 40 / 100));
+    }
+
+    @Test
+    void refillCappedAtCapacity() {
+        LocalBucket bucket = new LocalBucket(10, 5, 0);
+        acquire(bucket, 0, 5);
+        assertEquals(5, acquire(bucket, 60 * SECOND, 10));
+    }
+
+    @Test
+    void fractionalRate() {
+        //每2秒1个令牌
+        LocalBucket bucket = new LocalBucket(0.5, 1, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(SECOND));
+        assertTrue(bucket.tryAcquire(2 * SECOND));
+    }
+
+    @Test
+    void earlierTimeDoesNotDrainTokens() {
+        LocalBucket bucket = new LocalBucket(10, 5, SECOND);
+        acquire(bucket, SECOND, 5);
+        //其他线程加锁之前读取的较早的时间，不会产生负的补充
+        assertFalse(bucket.tryAcquire(SECOND - SECOND / 10));
+        assertTrue(bucket.tryAcquire(SECOND + SECOND / 10));
+    }
+}